@@ -0,0 +1,31 @@
+package android.net;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+public class LocalServerSocket {
+
+    public LocalServerSocket(String name) throws IOException {
+        throw new RuntimeException("Stub!");
+    }
+
+    public LocalServerSocket(FileDescriptor fd) throws IOException {
+        throw new RuntimeException("Stub!");
+    }
+
+    public LocalSocketAddress getLocalSocketAddress() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public LocalSocket accept() throws IOException {
+        throw new RuntimeException("Stub!");
+    }
+
+    public FileDescriptor getFileDescriptor() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void close() throws IOException {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,24 @@
+package android.net;
+
+public class LocalSocketAddress {
+
+    public enum Namespace {
+        ABSTRACT, RESERVED, FILESYSTEM;
+    }
+
+    public LocalSocketAddress(String name, Namespace namespace) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public LocalSocketAddress(String name) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public String getName() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public Namespace getNamespace() {
+        throw new RuntimeException("Stub!");
+    }
+}
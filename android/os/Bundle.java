@@ -10,4 +10,8 @@ public class Bundle {
         throw new RuntimeException("Stub!");
     }
 
+    public void putCharSequence(String key, CharSequence value) {
+        throw new RuntimeException("Stub!");
+    }
+
 }
\ No newline at end of file
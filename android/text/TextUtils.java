@@ -0,0 +1,13 @@
+package android.text;
+
+public class TextUtils {
+
+    public static boolean equals(CharSequence a, CharSequence b) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static boolean isEmpty(CharSequence str) {
+        throw new RuntimeException("Stub!");
+    }
+
+}
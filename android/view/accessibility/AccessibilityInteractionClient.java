@@ -2,6 +2,7 @@ package android.view.accessibility;
 
 import java.util.List;
 import android.accessibilityservice.IAccessibilityInteractionConnectionCallback;
+import android.accessibilityservice.IAccessibilityServiceConnection;
 import android.os.Bundle;
 
 public final class AccessibilityInteractionClient extends IAccessibilityInteractionConnectionCallback.Stub {
@@ -31,6 +32,10 @@ public final class AccessibilityInteractionClient extends IAccessibilityInteract
         throw new RuntimeException("Stub!");
     }
 
+    public static IAccessibilityServiceConnection getConnection(int connectionId) {
+        throw new RuntimeException("Stub!");
+    }
+
     public List<AccessibilityNodeInfo> findAccessibilityNodeInfosByViewId(int connectionId, int activeWindowId,
             long rootNodeId, String viewId) {
         throw new RuntimeException("Stub!");
@@ -14,6 +14,11 @@ rm classes.dex
 adb shell "export CLASSPATH=/data/local/tmp/monkey_repl.jar && exec app_process /system/bin com.android.commands.monkey.Monkey"
 # adb shell "export CLASSPATH=/data/local/tmp/monkey_repl.jar && exec nohup app_process /system/bin com.android.commands.monkey.Monkey"
 
+# checks and benchmarks run on the host, kept out of the jar
+# javac -encoding UTF-8 -cp build/ -d build_check/ "@check_list"
+# java -cp "build/;build_check/" com.android.commands.monkey.MonkeyViewSnapshotCheck
+# java -cp "build/;build_check/" com.android.commands.monkey.MonkeyCommandLineBench
+
 # adb shell ps | grep monkey
 # adb shell getevent -ltr  /dev/input/event0
 # adb shell getevent -ltr
\ No newline at end of file
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2011, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringTokenizer;
+
+/**
+ * Compares {@link MonkeyCommandLine} with the splitter MonkeySourceNetwork
+ * used before it, on a host JVM. Built apart from the monkey like
+ * MonkeyViewSnapshotCheck, see build.ps1:
+ *
+ * <pre>
+ * java -cp "build/;build_check/" com.android.commands.monkey.MonkeyCommandLineBench
+ * </pre>
+ *
+ * First splits random lines both ways and checks they agree, except where
+ * the old splitter had its quoting bugs, then times "touch move 1234 567"
+ * from the line bytes to the command and its int arguments, and reports the
+ * bytes allocated per line. Exits with status 1 if the splitters disagree.
+ */
+public class MonkeyCommandLineBench {
+    private static final int RANDOM_LINES = 200000;
+    private static final int WARM_UP = 1000000;
+    private static final int ITERATIONS = 1000000;
+
+    private static final String[] NAMES = { "flip", "touch", "trackball", "key", "sleep", "type", "tap", "press",
+            "wake", "echo" };
+
+    public static void main(String[] args) {
+        compare();
+
+        byte[] line = "touch move 1234 567".getBytes(StandardCharsets.UTF_8);
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        for (int i = 0; i < NAMES.length; i++) {
+            map.put(NAMES[i], i);
+        }
+        MonkeyCommandLine parts = new MonkeyCommandLine();
+        long sink = 0;
+        for (int i = 0; i < WARM_UP; i++) {
+            sink += runOld(line, map) + runNew(line, parts);
+        }
+
+        long bytes = allocatedBytes();
+        long time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += runOld(line, map);
+        }
+        report("before", System.nanoTime() - time, allocatedBytes() - bytes);
+
+        bytes = allocatedBytes();
+        time = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += runNew(line, parts);
+        }
+        report("after", System.nanoTime() - time, allocatedBytes() - bytes);
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void report(String what, long nanos, long bytes) {
+        System.out.println(what + ": " + bytes / ITERATIONS + " B/command, " + nanos / ITERATIONS + " ns/command");
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static int runOld(byte[] line, Map<String, Integer> map) {
+        List<String> parts = commandLineSplit(new String(line, StandardCharsets.UTF_8));
+        Integer command = map.get(parts.get(0));
+        return command + Integer.parseInt(parts.get(2)) + Integer.parseInt(parts.get(3));
+    }
+
+    private static int runNew(byte[] line, MonkeyCommandLine parts) {
+        parts.parse(line, 0, line.length);
+        int command = -1;
+        for (int i = 0; i < NAMES.length; i++) {
+            if (parts.equalsAt(0, NAMES[i])) {
+                command = i;
+                break;
+            }
+        }
+        return command + parts.getInt(2) + parts.getInt(3);
+    }
+
+    /**
+     * Split random lines of words, quotes, escapes and whitespace both ways.
+     */
+    private static void compare() {
+        char[] alphabet = { 'a', 'b', '1', ' ', ' ', '\t', '"', '"', '\\' };
+        Random random = new Random(1);
+        MonkeyCommandLine parts = new MonkeyCommandLine();
+        int skipped = 0;
+        for (int n = 0; n < RANDOM_LINES; n++) {
+            char[] chars = new char[random.nextInt(24)];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            String line = new String(chars);
+            if (hasOldQuotingBug(line)) {
+                skipped++;
+                continue;
+            }
+            parts.parse(line.getBytes(StandardCharsets.UTF_8), 0, line.length());
+            List<String> expected = commandLineSplit(line);
+            if (!expected.equals(new ArrayList<String>(parts))) {
+                System.out.println("FAILED: [" + line + "] " + expected + " != " + parts);
+                System.exit(1);
+            }
+        }
+        System.out.println("split: " + (RANDOM_LINES - skipped) + " random lines agree, " + skipped
+                + " skipped for the old quoting bugs");
+    }
+
+    /**
+     * The old splitter kept a quoted word of a single token ("abc") open, and
+     * didn't clear the first quoted word before the second one.
+     */
+    private static boolean hasOldQuotingBug(String line) {
+        StringTokenizer tok = new StringTokenizer(line);
+        boolean insideQuote = false;
+        int quotes = 0;
+        while (tok.hasMoreTokens()) {
+            String cur = tok.nextToken();
+            if (!insideQuote && cur.startsWith("\"")) {
+                if (cur.length() > 1 && cur.endsWith("\"")) {
+                    return true;
+                }
+                insideQuote = true;
+            } else if (insideQuote && cur.endsWith("\"")) {
+                insideQuote = false;
+                if (++quotes > 1) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // The splitter of MonkeySourceNetwork before MonkeyCommandLine.
+
+    private static String replaceQuotedChars(String input) {
+        return input.replace("\\\"", "\"");
+    }
+
+    private static List<String> commandLineSplit(String line) {
+        ArrayList<String> result = new ArrayList<String>();
+        StringTokenizer tok = new StringTokenizer(line);
+
+        boolean insideQuote = false;
+        StringBuffer quotedWord = new StringBuffer();
+        while (tok.hasMoreTokens()) {
+            String cur = tok.nextToken();
+            if (!insideQuote && cur.startsWith("\"")) {
+                // begin quote
+                quotedWord.append(replaceQuotedChars(cur));
+                insideQuote = true;
+            } else if (insideQuote) {
+                // end quote
+                if (cur.endsWith("\"")) {
+                    insideQuote = false;
+                    quotedWord.append(" ").append(replaceQuotedChars(cur));
+                    String word = quotedWord.toString();
+
+                    // trim off the quotes
+                    result.add(word.substring(1, word.length() - 1));
+                } else {
+                    quotedWord.append(" ").append(replaceQuotedChars(cur));
+                }
+            } else {
+                result.add(replaceQuotedChars(cur));
+            }
+        }
+        return result;
+    }
+}
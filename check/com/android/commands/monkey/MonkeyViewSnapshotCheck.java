@@ -0,0 +1,110 @@
+/*
+ * Copyright 2011, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.Arrays;
+
+/**
+ * Checks {@link MonkeyViewSnapshot} on synthetic trees, without a device.
+ * Built apart from the monkey, so it doesn't end up in the jar pushed to the
+ * device; see build.ps1:
+ *
+ * <pre>
+ * javac -encoding UTF-8 -cp build/ -d build_check/ "@check_list"
+ * java -cp "build/;build_check/" com.android.commands.monkey.MonkeyViewSnapshotCheck
+ * </pre>
+ *
+ * Exits with status 1 at the first check that fails.
+ */
+public class MonkeyViewSnapshotCheck {
+    private static final int VISIBLE = MonkeyViewSnapshot.FLAG_VISIBLE_TO_USER;
+
+    public static void main(String[] args) {
+        // 0 FrameLayout
+        //   1 LinearLayout
+        //     2 TextView "OK"
+        //     3 TextView "OK"
+        //   4 Button "Cancel"
+        MonkeyViewSnapshot.Builder builder = new MonkeyViewSnapshot.Builder(2);
+        int root = builder.add(-1, 0, 100L, 7, VISIBLE, 0, 0, 1080, 2400);
+        builder.setStrings(root, null, null, "android.widget.FrameLayout", "com.example", null);
+        int list = builder.add(root, 0, 101L, 7, VISIBLE, 0, 0, 1080, 1200);
+        builder.setStrings(list, null, null, "android.widget.LinearLayout", "com.example", null);
+        int first = builder.add(list, 0, 102L, 7, VISIBLE, 0, 0, 1080, 600);
+        builder.setStrings(first, "OK", null, "android.widget.TextView", "com.example", "com.example:id/first");
+        int second = builder.add(list, 1, 103L, 7, 0, 0, 600, 1080, 1200);
+        builder.setStrings(second, "OK", null, "android.widget.TextView", "com.example", "com.example:id/second");
+        int button = builder.add(root, 1, 104L, 7, VISIBLE | MonkeyViewSnapshot.FLAG_CLICKABLE, 0, 1200, 1080,
+                2400);
+        builder.setStrings(button, "Cancel", "cancel", "android.widget.Button", "com.example", null);
+        builder.setInputType(button, 0, 20);
+        MonkeyViewSnapshot snapshot = builder.build();
+
+        check("size", snapshot.size() == 5);
+        check("subtree ends", snapshot.getSubtreeEnd(root) == 5 && snapshot.getSubtreeEnd(list) == 4
+                && snapshot.getSubtreeEnd(first) == 3 && snapshot.getSubtreeEnd(button) == 5);
+        check("depths", snapshot.getDepth(root) == 0 && snapshot.getDepth(list) == 1
+                && snapshot.getDepth(second) == 2 && snapshot.getDepth(button) == 1);
+        check("parents", snapshot.getParent(root) == -1 && snapshot.getParent(second) == list
+                && snapshot.getParent(button) == root);
+        check("strings", "OK".equals(snapshot.getText(second)) && "cancel".equals(snapshot.getContentDescription(4))
+                && "com.example:id/second".equals(snapshot.getViewIdResourceName(second)));
+        // OK, Cancel, cancel, 4 classes, the package and 2 resource ids.
+        check("interning", snapshot.getStringCount() == 10
+                && snapshot.getText(first) == snapshot.getText(second));
+        check("flags", snapshot.is(button, MonkeyViewSnapshot.FLAG_CLICKABLE)
+                && !snapshot.is(second, VISIBLE) && snapshot.getMaxTextLength(button) == 20);
+        check("bounds", "[0,1200][1080,2400]".equals(snapshot.getBoundsString(button))
+                && snapshot.getViewId(button) == 104);
+        check("indexOf", snapshot.indexOf(103L) == second && snapshot.indexOf(999L) == -1);
+
+        MonkeyViewSnapshot subtree = snapshot.subtree(list);
+        check("subtree", subtree.size() == 3 && subtree.getDepth(0) == 0 && subtree.getParent(0) == -1
+                && subtree.getSubtreeEnd(0) == 3 && "OK".equals(subtree.getText(2)));
+
+        // The same tree with the second text changed and the button gone.
+        builder = new MonkeyViewSnapshot.Builder(4);
+        root = builder.add(-1, 0, 100L, 7, VISIBLE, 0, 0, 1080, 2400);
+        builder.setStrings(root, null, null, "android.widget.FrameLayout", "com.example", null);
+        list = builder.add(root, 0, 101L, 7, VISIBLE, 0, 0, 1080, 1200);
+        builder.setStrings(list, null, null, "android.widget.LinearLayout", "com.example", null);
+        first = builder.add(list, 0, 102L, 7, VISIBLE, 0, 0, 1080, 600);
+        builder.setStrings(first, "OK", null, "android.widget.TextView", "com.example", "com.example:id/first");
+        second = builder.add(list, 1, 103L, 7, 0, 0, 600, 1080, 1200);
+        builder.setStrings(second, "Done", null, "android.widget.TextView", "com.example", "com.example:id/second");
+        MonkeyViewSnapshot newer = builder.build();
+        MonkeyViewSnapshot.Diff diff = newer.diff(snapshot);
+        check("version", newer.getVersion() > snapshot.getVersion());
+        check("diff", diff.added.length == 0 && Arrays.equals(diff.changed, new int[] { second })
+                && Arrays.equals(diff.removed, new int[] { 4 }));
+        check("no diff", snapshot.diff(snapshot).isEmpty());
+
+        MonkeySpatialIndex spatial = snapshot.getSpatialIndex();
+        check("nodeat", spatial.nodeAt(10, 10) == first && spatial.nodeAt(10, 700) == list
+                && spatial.nodeAt(10, 1500) == button && spatial.nodeAt(2000, 10) == -1);
+        check("nodesin", Arrays.equals(spatial.nodesIn(0, 0, 1080, 1200), new int[] { list, first }));
+
+        System.out.println("OK");
+    }
+
+    private static void check(String what, boolean passed) {
+        if (!passed) {
+            System.out.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+}
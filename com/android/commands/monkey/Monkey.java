@@ -16,8 +16,7 @@
 
 package com.android.commands.monkey;
 
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.BindException;
 
 import android.app.ActivityManager;
 import android.app.ActivityManagerNative;
@@ -38,6 +37,20 @@ import android.view.Surface;
  */
 public class Monkey {
 
+    // The TCP port clients connect to.
+    private static final int SERVER_PORT = 5324;
+
+    // The abstract-namespace local socket clients can connect to instead,
+    // e.g. through "adb forward tcp:5324 localabstract:monkey-repl".
+    private static final String LOCAL_SOCKET_NAME = "monkey-repl";
+
+    // Threads executing commands, shared by all connections.
+    private static final int WORKER_THREADS = 4;
+
+    // Connection timeouts in milliseconds, see MonkeyNetworkServer.
+    private long mReadTimeout = MonkeyNetworkServer.DEFAULT_READ_TIMEOUT;
+    private long mIdleTimeout = 0;
+
     private IActivityManager mAm;
 
     private IWindowManager mWm;
@@ -58,6 +71,7 @@ public class Monkey {
             Logger.out.println("    // activityStarting(" + pkg + ")");
             currentPackage = pkg;
             currentIntent = intent;
+            MonkeyNotifier.activityStarting(intent, pkg);
             return true;
         }
 
@@ -66,6 +80,7 @@ public class Monkey {
             Logger.out.println("    // activityResuming(" + pkg + ")");
             currentPackage = pkg;
             StrictMode.setThreadPolicy(savedPolicy);
+            MonkeyNotifier.activityResuming(pkg);
             return true;
         }
 
@@ -121,6 +136,11 @@ public class Monkey {
      */
     private int run(String[] args) {
 
+        if (!processOptions(args)) {
+            showUsage();
+            return -1;
+        }
+
         if (!getSystemInterfaces()) {
             Logger.err.println("getSystemInterfaces error!");
             return -3;
@@ -133,9 +153,28 @@ public class Monkey {
             return -4;
         }
 
+        MonkeyNetworkServer.SessionRunner runner = new MonkeyNetworkServer.SessionRunner() {
+
+            @Override
+            public void runCommands(MonkeySourceNetwork source) {
+                runMonkeyCycles(source);
+            }
+
+            @Override
+            public void sessionClosed(MonkeySourceNetwork source) {
+                // Release the rotation lock if it's still held and restore the
+                // original orientation.
+                new MonkeyRotationEvent(Surface.ROTATION_0, false).injectEvent(mWm, mAm, 0);
+            }
+        };
+
         while (true) {
             try {
-                ServerSocket serverSocket = new ServerSocket(5324);
+                MonkeyNetworkServer server = new MonkeyNetworkServer(SERVER_PORT, WORKER_THREADS, mAm, runner);
+                server.setReadTimeout(mReadTimeout);
+                server.setIdleTimeout(mIdleTimeout);
+                server.setLocalSocketName(LOCAL_SOCKET_NAME);
+                server.open();
 
                 try {
                     mAm.setActivityController(new ActivityController(), false);
@@ -143,39 +182,10 @@ public class Monkey {
                     mAm.setActivityController(new ActivityController());
                 }
 
-                Logger.out.println("start ServerSocket on 5324.");
-
-                while (true) {
-                    try {
-
-                        Logger.out.println("wait accept client ... ");
-
-                        Socket socket = serverSocket.accept();
-
-                        Logger.out.println("accept client : " + socket.getRemoteSocketAddress());
-                        new Thread() {
-
-                            @Override
-                            public void run() {
-                                try {
-                                    MonkeyEventSource mEventSource = new MonkeySourceNetwork(mAm, socket);
-                                    try {
-                                        runMonkeyCycles(mEventSource);
-                                    } finally {
-                                        // Release the rotation lock if it's still held and restore the
-                                        // original orientation.
-                                        new MonkeyRotationEvent(Surface.ROTATION_0, false).injectEvent(mWm, mAm, 0);
-                                    }
-                                } catch (Throwable e) {
-                                    Logger.error(e.getMessage(), e);
-                                }
-                            }
-                        }.start();
-                    } catch (Throwable e) {
-                        Logger.error(e.getMessage(), e);
-                        serverSocket.close();
-                        break;
-                    }
+                try {
+                    server.run();
+                } catch (Throwable e) {
+                    Logger.error(e.getMessage(), e);
                 }
 
                 try {
@@ -186,7 +196,8 @@ public class Monkey {
 
             } catch (Throwable e) {
                 Logger.error(e.getMessage(), e);
-                if (e.getMessage().contains("EADDRINUSE")) {
+                if (e instanceof BindException
+                        || (e.getMessage() != null && e.getMessage().contains("EADDRINUSE"))) {
                     return 0;
                 }
             }
@@ -198,6 +209,50 @@ public class Monkey {
         }
     }
 
+    /**
+     * Process the command-line options.
+     *
+     * @param args The command-line arguments
+     * @return Returns true if the options were valid.
+     */
+    private boolean processOptions(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String opt = args[i];
+            if (!"--read-timeout".equals(opt) && !"--idle-timeout".equals(opt)) {
+                Logger.err.println("** Error: Unknown option: " + opt);
+                return false;
+            }
+            if (i + 1 == args.length) {
+                Logger.err.println("** Error: Option " + opt + " requires a value");
+                return false;
+            }
+            long value;
+            try {
+                value = Long.parseLong(args[++i]);
+            } catch (NumberFormatException e) {
+                Logger.err.println("** Error: \"" + args[i] + "\" is not a number");
+                return false;
+            }
+            if (value < 0) {
+                Logger.err.println("** Error: " + opt + " can't be negative");
+                return false;
+            }
+            if ("--read-timeout".equals(opt)) {
+                mReadTimeout = value;
+            } else {
+                mIdleTimeout = value;
+            }
+        }
+        return true;
+    }
+
+    private void showUsage() {
+        Logger.err.println("usage: monkey [--read-timeout MILLISEC] [--idle-timeout MILLISEC]");
+        Logger.err.println("  --read-timeout  drop clients stalling in the middle of a line, 0 for never (default "
+                + MonkeyNetworkServer.DEFAULT_READ_TIMEOUT + ")");
+        Logger.err.println("  --idle-timeout  drop clients sending nothing, 0 for never (default 0)");
+    }
+
     /**
      * Attach to the required system interfaces.
      *
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2009, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A request line split into its words, reusable from one line to the next.
+ * <p>
+ * The line is decoded and split in a single pass into one char buffer. Words
+ * are only turned into Strings when a command asks for them with
+ * {@link #get(int)}; numbers can be read straight from the buffer with
+ * {@link #getInt(int)} and words compared with {@link #equalsAt(int, String)},
+ * so a "touch move 100 200" doesn't allocate anything once the buffers have
+ * grown to the longest line seen.
+ * <p>
+ * Words are split on whitespace. A word starting with a double quote starts a
+ * quoted word, which runs up to the next word ending with a double quote; its
+ * words are joined by single spaces and the quotes are dropped. A quoted word
+ * that is never closed is dropped. \" stands for a double quote anywhere.
+ */
+public class MonkeyCommandLine extends AbstractList<String> implements RandomAccess {
+    private char[] chars = new char[128];
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private String[] strings = new String[16];
+    private int count;
+    // Index of the first word exposed through the List interface.
+    private int first;
+
+    /**
+     * Split a line read from the client.
+     *
+     * @param bytes  the UTF-8 encoded line, without the line terminator.
+     * @param offset where the line starts in bytes.
+     * @param length the length of the line in bytes.
+     */
+    public void parse(byte[] bytes, int offset, int length) {
+        ensureChars(length);
+        int n = 0;
+        for (; n < length; n++) {
+            byte b = bytes[offset + n];
+            if (b < 0) {
+                // Not ASCII, leave the decoding to the charset.
+                String line = new String(bytes, offset, length, StandardCharsets.UTF_8);
+                ensureChars(line.length());
+                line.getChars(0, line.length(), chars, 0);
+                split(line.length());
+                return;
+            }
+            chars[n] = (char) b;
+        }
+        split(length);
+    }
+
+    /**
+     * Split a line.
+     */
+    public void parse(String line) {
+        ensureChars(line.length());
+        line.getChars(0, line.length(), chars, 0);
+        split(line.length());
+    }
+
+    private void ensureChars(int length) {
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+    }
+
+    /**
+     * Split the first length chars of the buffer into words, in place. Words
+     * are compacted towards the start of the buffer as quotes and escapes are
+     * dropped, so writing never overtakes reading.
+     */
+    private void split(int length) {
+        Arrays.fill(strings, 0, count, null);
+        count = 0;
+        first = 0;
+        int read = 0;
+        int write = 0;
+        int quoteStart = -1;
+        while (true) {
+            while (read < length && isWhitespace(chars[read])) {
+                read++;
+            }
+            if (read == length) {
+                break;
+            }
+            int wordStart = read;
+            while (read < length && !isWhitespace(chars[read])) {
+                read++;
+            }
+            int wordEnd = read;
+            boolean closesQuote = chars[wordEnd - 1] == '"';
+
+            int from = wordStart;
+            if (quoteStart < 0 && chars[wordStart] == '"') {
+                // begin quote
+                quoteStart = write;
+                from++;
+                closesQuote &= wordEnd - wordStart > 1;
+            } else if (quoteStart >= 0) {
+                chars[write++] = ' ';
+            }
+            int start = write;
+            write = unescape(from, wordEnd, write);
+
+            if (quoteStart < 0) {
+                addWord(start, write);
+            } else if (closesQuote) {
+                // end quote, drop the closing quote
+                addWord(quoteStart, write - 1);
+                quoteStart = -1;
+            }
+        }
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * Copy chars [from, to) to write, replacing \" by ".
+     *
+     * @return the new write position.
+     */
+    private int unescape(int from, int to, int write) {
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            if (c == '\\' && i + 1 < to && chars[i + 1] == '"') {
+                continue;
+            }
+            chars[write++] = c;
+        }
+        return write;
+    }
+
+    private void addWord(int start, int end) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+            strings = Arrays.copyOf(strings, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    /**
+     * Hide the first word from the List interface, e.g. the request id of a
+     * framed request. Indexes passed to the other methods are shifted too.
+     */
+    public void dropFirst() {
+        if (first < count) {
+            first++;
+        }
+    }
+
+    @Override
+    public int size() {
+        return count - first;
+    }
+
+    @Override
+    public String get(int index) {
+        int i = checkIndex(index);
+        String s = strings[i];
+        if (s == null) {
+            s = new String(chars, starts[i], ends[i] - starts[i]);
+            strings[i] = s;
+        }
+        return s;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        return first + index;
+    }
+
+    /**
+     * @return the length of the word at index.
+     */
+    public int lengthAt(int index) {
+        int i = checkIndex(index);
+        return ends[i] - starts[i];
+    }
+
+    /**
+     * @return true if the word at index starts with c.
+     */
+    public boolean startsWith(int index, char c) {
+        int i = checkIndex(index);
+        return ends[i] > starts[i] && chars[starts[i]] == c;
+    }
+
+    /**
+     * Compare the word at index with s without creating a String for it.
+     */
+    public boolean equalsAt(int index, String s) {
+        int i = checkIndex(index);
+        int start = starts[i];
+        int length = ends[i] - start;
+        if (length != s.length()) {
+            return false;
+        }
+        for (int j = 0; j < length; j++) {
+            if (chars[start + j] != s.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the word at index is a decimal int, as accepted by
+     *         {@link #getInt(int)}.
+     */
+    public boolean isInt(int index) {
+        int i = checkIndex(index);
+        return parseInt(starts[i], ends[i]);
+    }
+
+    /**
+     * Parse the word at index as a decimal int, like Integer.parseInt does.
+     *
+     * @throws NumberFormatException if the word is not an int.
+     */
+    public int getInt(int index) {
+        int i = checkIndex(index);
+        if (!parseInt(starts[i], ends[i])) {
+            throw new NumberFormatException("For input string: \"" + get(index) + "\"");
+        }
+        return parsed;
+    }
+
+    // The value found by the last successful parseInt.
+    private int parsed;
+
+    /**
+     * Parse chars [start, end) as a decimal int into parsed.
+     *
+     * @return false if they are not an int.
+     */
+    private boolean parseInt(int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (chars[i] == '-' || chars[i] == '+')) {
+            negative = chars[i] == '-';
+            i++;
+        }
+        if (i == end) {
+            return false;
+        }
+        // Accumulate negatively so Integer.MIN_VALUE fits.
+        int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = chars[i] - '0';
+            if (digit < 0 || digit > 9 || value < limit / 10) {
+                return false;
+            }
+            value *= 10;
+            if (value < limit + digit) {
+                return false;
+            }
+            value -= digit;
+        }
+        parsed = negative ? value : -value;
+        return true;
+    }
+
+    /**
+     * Read an int argument of a command, straight from the buffer if the
+     * command line is a MonkeyCommandLine.
+     *
+     * @throws NumberFormatException if the word is not an int.
+     */
+    public static int getInt(List<String> command, int index) {
+        if (command instanceof MonkeyCommandLine) {
+            return ((MonkeyCommandLine) command).getInt(index);
+        }
+        return Integer.parseInt(command.get(index));
+    }
+
+    /**
+     * @return true if the word at index of the command is an int.
+     */
+    public static boolean isInt(List<String> command, int index) {
+        if (command instanceof MonkeyCommandLine) {
+            return ((MonkeyCommandLine) command).isInt(index);
+        }
+        try {
+            Integer.parseInt(command.get(index));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Compare a word of the command with s, without creating a String for it
+     * if the command line is a MonkeyCommandLine.
+     */
+    public static boolean equalsAt(List<String> command, int index, String s) {
+        if (command instanceof MonkeyCommandLine) {
+            return ((MonkeyCommandLine) command).equalsAt(index, s);
+        }
+        return s.equals(command.get(index));
+    }
+
+    /**
+     * @return the words joined by single spaces.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = first; i < count; i++) {
+            if (i > first) {
+                sb.append(' ');
+            }
+            sb.append(chars, starts[i], ends[i] - starts[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,1081 @@
+/*
+ * Copyright 2009, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.app.IActivityManager;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Serves Monkey network script connections.
+ * <p>
+ * A single selector thread (the one calling {@link #run()}) owns every socket.
+ * It accepts clients, reads and splits their request lines and hands them to
+ * the MonkeySourceNetwork of each connection. Commands are executed on a small
+ * fixed pool of worker threads, with at most one worker per connection at a
+ * time so requests of a connection still run in order. The number of
+ * connections therefore no longer dictates the number of threads. A client
+ * waiting in waitfor, waitidle, deferreturn or a throttle doesn't keep its
+ * worker: its session is parked, see MonkeySession, and scheduled again once
+ * it is woken up. Notifications are written on a pool of their own.
+ * <p>
+ * Optionally the same protocol is also served on a Linux abstract-namespace
+ * Unix domain socket, which "adb forward tcp:[port] localabstract:[name]" can
+ * target without going through TCP loopback on the device. That listener keeps
+ * the server usable when the TCP port is taken by something else. LocalSocket
+ * can't be used with a selector, so every local client has a reader thread of
+ * its own, and at most MAX_LOCAL_CLIENTS of them are served at once.
+ * <p>
+ * Connections are closed when the client hangs up, when it stops in the middle
+ * of a line (or before saying hello) for longer than the read timeout, and,
+ * if an idle timeout is set, when it has neither sent anything nor had a
+ * request executing for that long. Clients that want to stay connected
+ * without sending requests can send empty lines. TCP keepalive is enabled on
+ * every connection.
+ */
+public class MonkeyNetworkServer {
+    private static final String TAG = "MonkeyServer";
+
+    // Longest request line accepted. "copy base64" payloads can be long.
+    private static final int MAX_LINE_LENGTH = 8 * 1024 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    // Size of the chunks responses are handed to the selector thread in.
+    private static final int WRITE_CHUNK_SIZE = 8 * 1024;
+
+    // Once this many response bytes of a connection are waiting to be sent,
+    // the worker writing them blocks until the client catches up.
+    private static final int MAX_PENDING_OUTPUT = 4 * 1024 * 1024;
+
+    // How long a client may leave its pending responses unread while over
+    // MAX_PENDING_OUTPUT before it is dropped.
+    private static final long OUTPUT_STALL_TIMEOUT = 30 * 1000;
+
+    // Threads writing notifications, shared by all connections.
+    private static final int NOTIFIER_THREADS = 2;
+
+    // Default for how long a client may stall in the middle of a line.
+    public static final long DEFAULT_READ_TIMEOUT = 60 * 1000;
+
+    // The most local socket clients served at once. Each has a thread of its
+    // own blocked reading, so their number has to be bounded.
+    private static final int MAX_LOCAL_CLIENTS = 16;
+
+    // How often the timeouts of the connections are checked.
+    private static final long TIMEOUT_CHECK_INTERVAL = 1000;
+
+    /**
+     * Executes the commands of a connection on a worker thread.
+     */
+    public interface SessionRunner {
+        /**
+         * Inject the events of the source until it returns null from
+         * getNextEvent.
+         *
+         * @param source the source of the connection.
+         */
+        void runCommands(MonkeySourceNetwork source);
+
+        /**
+         * Called once on a worker thread after the source was closed.
+         *
+         * @param source the source of the connection.
+         */
+        void sessionClosed(MonkeySourceNetwork source);
+    }
+
+    private final int port;
+    private final IActivityManager mAm;
+    private final SessionRunner runner;
+    private final ExecutorService workers;
+    private final ExecutorService notifiers;
+
+    // Work posted by other threads that has to happen on the selector thread.
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private Selector selector;
+    // Null if the TCP port couldn't be bound and only the local socket is served.
+    private ServerSocketChannel serverChannel;
+
+    private String localSocketName;
+    private LocalServerSocket localServerSocket;
+    private volatile boolean localStopped;
+    private final Set<LocalConnection> localClients = Collections
+            .newSetFromMap(new ConcurrentHashMap<LocalConnection, Boolean>());
+
+    private long readTimeout = DEFAULT_READ_TIMEOUT;
+    private long idleTimeout;
+    private long lastTimeoutCheck;
+
+    /**
+     * @param port        the TCP port to listen on.
+     * @param workerCount the number of threads executing commands.
+     * @param am          the activity manager.
+     * @param runner      executes the commands of each connection.
+     */
+    public MonkeyNetworkServer(int port, int workerCount, IActivityManager am, SessionRunner runner) {
+        this.port = port;
+        this.mAm = am;
+        this.runner = runner;
+        this.workers = Executors.newFixedThreadPool(workerCount, daemonThreads("MonkeyWorker"));
+        this.notifiers = Executors.newFixedThreadPool(NOTIFIER_THREADS, daemonThreads("MonkeyNotifier"));
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Set how long a client may stall in the middle of a request line, or
+     * before saying hello, before it is dropped.
+     *
+     * @param readTimeout the timeout in milliseconds, 0 for none.
+     */
+    public void setReadTimeout(long readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Set how long a client may send nothing while none of its requests are
+     * executing before it is dropped.
+     *
+     * @param idleTimeout the timeout in milliseconds, 0 for none.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Also listen on an abstract-namespace local socket.
+     *
+     * @param localSocketName the name of the socket, or null for none.
+     */
+    public void setLocalSocketName(String localSocketName) {
+        this.localSocketName = localSocketName;
+    }
+
+    /**
+     * Bind the listening sockets. If the TCP port is taken, only the local
+     * socket is served.
+     *
+     * @throws IOException if neither the port nor the local socket can be
+     *                     bound. The error is the one binding the port.
+     */
+    public void open() throws IOException {
+        selector = Selector.open();
+        IOException tcpError = null;
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            Logger.out.println("start ServerSocket on " + port + ".");
+        } catch (IOException e) {
+            if (serverChannel != null) {
+                serverChannel.close();
+                serverChannel = null;
+            }
+            tcpError = e;
+        }
+        if (localSocketName != null) {
+            try {
+                openLocal();
+            } catch (IOException e) {
+                Log.w(TAG, "Can't listen on local socket " + localSocketName + ": " + e.getMessage());
+            }
+        }
+        if (tcpError != null) {
+            if (localServerSocket == null) {
+                selector.close();
+                throw tcpError;
+            }
+            Logger.out.println("Port " + port + " unavailable (" + tcpError.getMessage()
+                    + "), serving the local socket only.");
+        }
+    }
+
+    private void openLocal() throws IOException {
+        localServerSocket = new LocalServerSocket(localSocketName);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLocal();
+            }
+        }, "MonkeyLocalAcceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Logger.out.println("start LocalServerSocket on @" + localSocketName + ".");
+    }
+
+    /**
+     * Serve TCP connections on the calling thread until the listening socket
+     * fails, local ones are served by threads of their own. Closes the server
+     * before returning.
+     */
+    public void run() throws IOException {
+        try {
+            while (true) {
+                if (readTimeout > 0 || idleTimeout > 0) {
+                    selector.select(TIMEOUT_CHECK_INTERVAL);
+                    checkTimeouts();
+                } else {
+                    selector.select();
+                }
+
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flushOutput();
+                        }
+                    } catch (IOException e) {
+                        Log.d(TAG, "Connection failed: " + e.getMessage());
+                        connection.hangUp();
+                    }
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Drop the clients that ran into the read or idle timeout.
+     */
+    private void checkTimeouts() {
+        long now = SystemClock.uptimeMillis();
+        if (now - lastTimeoutCheck < TIMEOUT_CHECK_INTERVAL) {
+            return;
+        }
+        lastTimeoutCheck = now;
+        List<Client> expired = null;
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection && ((Connection) key.attachment()).isExpired(now)) {
+                if (expired == null) {
+                    expired = new ArrayList<Client>();
+                }
+                expired.add((Connection) key.attachment());
+            }
+        }
+        for (LocalConnection client : localClients) {
+            if (client.isExpired(now)) {
+                if (expired == null) {
+                    expired = new ArrayList<Client>();
+                }
+                expired.add(client);
+            }
+        }
+        if (expired != null) {
+            for (Client client : expired) {
+                client.hangUp();
+            }
+        }
+    }
+
+    /**
+     * Close the listening sockets and every connection.
+     */
+    private void close() {
+        List<Connection> connections = new ArrayList<Connection>();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                connections.add((Connection) key.attachment());
+            }
+        }
+        for (Connection connection : connections) {
+            connection.hangUp();
+        }
+        if (localServerSocket != null) {
+            closeLocal();
+        }
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Close failed: " + e.getMessage());
+        }
+        workers.shutdown();
+        notifiers.shutdown();
+    }
+
+    private void closeLocal() {
+        localStopped = true;
+        try {
+            // Closing the server socket doesn't wake a thread blocked in
+            // accept, connecting to it does.
+            LocalSocket wakeUp = new LocalSocket();
+            wakeUp.connect(new LocalSocketAddress(localSocketName));
+            wakeUp.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Waking the local acceptor failed: " + e.getMessage());
+        }
+        try {
+            localServerSocket.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Close failed: " + e.getMessage());
+        }
+        for (LocalConnection client : localClients) {
+            client.hangUp();
+        }
+    }
+
+    /**
+     * Acceptor thread body: accept local clients until the server closes.
+     */
+    private void acceptLocal() {
+        while (true) {
+            LocalSocket socket;
+            try {
+                socket = localServerSocket.accept();
+            } catch (IOException e) {
+                if (!localStopped) {
+                    Logger.error(e.getMessage(), e);
+                }
+                return;
+            }
+            if (localStopped) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "Close failed: " + e.getMessage());
+                }
+                return;
+            }
+            if (localClients.size() >= MAX_LOCAL_CLIENTS) {
+                Log.w(TAG, "Too many local clients, refusing one");
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "Close failed: " + e.getMessage());
+                }
+                continue;
+            }
+            Logger.out.println("accept local client");
+            try {
+                LocalConnection client = new LocalConnection(socket);
+                localClients.add(client);
+                client.start();
+            } catch (IOException e) {
+                Logger.error(e.getMessage(), e);
+                try {
+                    socket.close();
+                } catch (IOException e1) {
+                    Log.d(TAG, "Close failed: " + e1.getMessage());
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        Logger.out.println("accept client : " + channel.socket().getRemoteSocketAddress());
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+            Logger.error(e.getMessage(), e);
+            channel.close();
+        }
+    }
+
+    /**
+     * Run the task on the selector thread.
+     */
+    private void postToSelector(Runnable task) {
+        selectorTasks.offer(task);
+        selector.wakeup();
+    }
+
+
+    /**
+     * A client of either listener. Commands run on one worker at a time; how
+     * requests are read and responses written is up to the subclass.
+     */
+    private abstract class Client implements Runnable {
+        MonkeySourceNetwork source;
+
+        private byte[] line = new byte[256];
+        int lineLength;
+        // Whether offerLine asked to stop reading.
+        volatile boolean readPaused;
+        // Whether the end of the stream has been passed on to the source.
+        volatile boolean ended;
+        // When the client last sent something.
+        volatile long lastReadTime = SystemClock.uptimeMillis();
+        // When a worker last finished executing the requests of the client.
+        private volatile long lastRunTime;
+
+        // Whether a worker is running or about to run the commands.
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /**
+         * Create the source. Called once from the constructor of the subclass.
+         *
+         * @param out         the stream responses are written to.
+         * @param readResumer run once reading may continue after a pause.
+         */
+        void setUp(OutputStream out, Runnable readResumer) {
+            source = new MonkeySourceNetwork(mAm, new MonkeyResponseWriter(out));
+            source.setReadResumer(readResumer);
+            source.setNotificationExecutor(notifiers);
+            source.setResumer(new Runnable() {
+                @Override
+                public void run() {
+                    schedule();
+                }
+            });
+        }
+
+        /**
+         * Add a byte to the request line being read.
+         *
+         * @return false if the line got too long and the client was dropped.
+         */
+        boolean appendToLine(byte b) {
+            if (lineLength == MAX_LINE_LENGTH) {
+                Log.w(TAG, "Request line too long, dropping client");
+                hangUp();
+                return false;
+            }
+            if (lineLength == line.length) {
+                byte[] bigger = new byte[Math.min(line.length * 2, MAX_LINE_LENGTH)];
+                System.arraycopy(line, 0, bigger, 0, lineLength);
+                line = bigger;
+            }
+            line[lineLength++] = b;
+            return true;
+        }
+
+        /**
+         * Pass the request line read so far to the source and start a new one.
+         *
+         * @return the result of offerLine.
+         */
+        boolean offerLine() {
+            int length = lineLength;
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            lineLength = 0;
+            return source.offerLine(line, 0, length);
+        }
+
+        /**
+         * Pass on a last request line the client didn't end with a newline
+         * before closing its side, like BufferedReader.readLine() used to.
+         *
+         * @return false if the client never said hello and was dropped.
+         */
+        boolean offerLastLine() {
+            if (lineLength == 0) {
+                return true;
+            }
+            return offerLine() || !source.isClosed();
+        }
+
+        /**
+         * @return true if the client stopped in the middle of a request line.
+         *         May be called from any thread.
+         */
+        abstract boolean isMidLine();
+
+        /**
+         * @return true if the client has to be dropped for running into the
+         *         read or idle timeout.
+         */
+        boolean isExpired(long now) {
+            if (ended || readPaused || source.isWaiting()) {
+                // The source is still busy with what was read.
+                return false;
+            }
+            long silence = now - lastReadTime;
+            if (readTimeout > 0 && silence > readTimeout && (isMidLine() || !source.isHelloReceived())) {
+                Log.w(TAG, "Read timed out, dropping client");
+                return true;
+            }
+            if (idleTimeout > 0 && silence > idleTimeout && now - lastRunTime > idleTimeout && !scheduled.get()) {
+                Log.w(TAG, "Idle timed out, dropping client");
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * The connection failed. Stop talking to the client and let the source
+         * wind down.
+         */
+        abstract void hangUp();
+
+        /**
+         * Close the socket once the source is closed. Called from the worker.
+         */
+        abstract void finish();
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                workers.execute(this);
+            }
+        }
+
+        /**
+         * Worker body: execute the commands read so far.
+         */
+        @Override
+        public void run() {
+            do {
+                try {
+                    runner.runCommands(source);
+                } catch (Throwable e) {
+                    Logger.error(e.getMessage(), e);
+                }
+                if (source.isClosed()) {
+                    // Leave scheduled set, this client is done for good.
+                    try {
+                        runner.sessionClosed(source);
+                    } catch (Throwable e) {
+                        Logger.error(e.getMessage(), e);
+                    }
+                    finish();
+                    return;
+                }
+                lastRunTime = SystemClock.uptimeMillis();
+                scheduled.set(false);
+                // A request may have arrived after the source ran dry but
+                // before scheduled was cleared.
+            } while (source.hasPendingCommands() && scheduled.compareAndSet(false, true));
+        }
+    }
+
+    /**
+     * A TCP client connection. Reading and all changes to the selection key
+     * happen on the selector thread.
+     */
+    private class Connection extends Client {
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        // Responses waiting for the socket to become writable, guarded by this.
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+        private int pendingOutput;
+        private boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            setUp(new ChannelOutputStream(), new Runnable() {
+                @Override
+                public void run() {
+                    postToSelector(new Runnable() {
+                        @Override
+                        public void run() {
+                            resumeReading();
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Read what is available and pass complete lines to the source.
+         */
+        void read() throws IOException {
+            int count = channel.read(readBuffer);
+            if (count < 0) {
+                if (!offerLastLine()) {
+                    close();
+                    return;
+                }
+                end();
+                return;
+            }
+            lastReadTime = SystemClock.uptimeMillis();
+            readBuffer.flip();
+            processInput();
+            readBuffer.compact();
+        }
+
+        /**
+         * Split the read buffer into lines. Stops early if the source asks for
+         * a pause, leaving the rest in the buffer.
+         */
+        private void processInput() {
+            boolean offered = false;
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b != '\n') {
+                    if (!appendToLine(b)) {
+                        return;
+                    }
+                    continue;
+                }
+                offered = true;
+                if (!offerLine()) {
+                    if (source.isClosed()) {
+                        // never said hello
+                        close();
+                        return;
+                    }
+                    readPaused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    break;
+                }
+            }
+            if (offered) {
+                schedule();
+            }
+        }
+
+        @Override
+        boolean isMidLine() {
+            return lineLength > 0;
+        }
+
+        /**
+         * Continue reading after the source caught up with the requests.
+         */
+        private void resumeReading() {
+            if (!readPaused || !key.isValid()) {
+                return;
+            }
+            readPaused = false;
+            readBuffer.flip();
+            processInput();
+            readBuffer.compact();
+            if (!readPaused && !ended) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * The client went away. Let the source execute what it has read so far,
+         * the socket is closed once it is done.
+         */
+        private void end() {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            source.offerEnd();
+            schedule();
+        }
+
+        @Override
+        void hangUp() {
+            end();
+            close();
+        }
+
+        @Override
+        void finish() {
+            postToSelector(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+        }
+
+        /**
+         * Queue response bytes for the client, writing them right away if the
+         * socket has room. Called from the worker thread.
+         *
+         * @param data the bytes to send.
+         * @return true if the connection kept a reference to data, false if it
+         *         was written out completely and may be reused.
+         */
+        synchronized boolean enqueueOutput(ByteBuffer data) throws IOException {
+            // Waiting is fine while the client reads, the clock only runs
+            // while nothing is sent.
+            long stalledSince = SystemClock.uptimeMillis();
+            int lastPendingOutput = pendingOutput;
+            while (pendingOutput > MAX_PENDING_OUTPUT && !closed) {
+                long now = SystemClock.uptimeMillis();
+                if (pendingOutput < lastPendingOutput) {
+                    lastPendingOutput = pendingOutput;
+                    stalledSince = now;
+                }
+                long left = stalledSince + OUTPUT_STALL_TIMEOUT - now;
+                if (left <= 0) {
+                    Log.w(TAG, "Client stopped reading responses, dropping it");
+                    postToSelector(new Runnable() {
+                        @Override
+                        public void run() {
+                            hangUp();
+                        }
+                    });
+                    throw new IOException("Client stopped reading");
+                }
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while writing");
+                }
+            }
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            if (output.isEmpty()) {
+                channel.write(data);
+                if (!data.hasRemaining()) {
+                    return false;
+                }
+            }
+            output.offer(data);
+            pendingOutput += data.remaining();
+            if (output.size() == 1) {
+                postToSelector(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (key.isValid()) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        }
+                    }
+                });
+            }
+            return true;
+        }
+
+        /**
+         * Write queued responses now that the socket is writable. Called from
+         * the selector thread.
+         */
+        synchronized void flushOutput() throws IOException {
+            while (!output.isEmpty()) {
+                ByteBuffer data = output.peek();
+                pendingOutput -= channel.write(data);
+                if (data.hasRemaining()) {
+                    break;
+                }
+                output.poll();
+            }
+            if (output.isEmpty()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            notifyAll();
+        }
+
+        /**
+         * Close the socket. Called from the selector thread.
+         */
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                output.clear();
+                pendingOutput = 0;
+                notifyAll();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.d(TAG, "Close failed: " + e.getMessage());
+            }
+            Logger.out.println("close client");
+        }
+
+        /**
+         * Collects the bytes of a response and hands them to the connection on
+         * flush.
+         */
+        private class ChannelOutputStream extends OutputStream {
+            private byte[] buffer = new byte[WRITE_CHUNK_SIZE];
+            private int count;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (count == buffer.length) {
+                    flush();
+                }
+                buffer[count++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (count == buffer.length) {
+                        flush();
+                    }
+                    int n = Math.min(len, buffer.length - count);
+                    System.arraycopy(b, off, buffer, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (count == 0) {
+                    return;
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, count);
+                count = 0;
+                if (enqueueOutput(data)) {
+                    // The connection holds on to the chunk until it is sent.
+                    buffer = new byte[WRITE_CHUNK_SIZE];
+                }
+            }
+        }
+    }
+
+    /**
+     * A client of the local socket. LocalSocket can't be registered with a
+     * selector, so every local client gets a thread blocking in read, which
+     * splits the request lines and waits while the source asks for a pause.
+     * Responses are written straight to the socket by the worker.
+     */
+    private class LocalConnection extends Client {
+        private final LocalSocket socket;
+
+        // Guarded by this.
+        private boolean resumed;
+        private boolean closed;
+
+        // lineLength as of the last read, for the timeout check.
+        private volatile boolean midLine;
+
+        LocalConnection(LocalSocket socket) throws IOException {
+            this.socket = socket;
+            setUp(new BufferedOutputStream(socket.getOutputStream(), WRITE_CHUNK_SIZE), new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (LocalConnection.this) {
+                        resumed = true;
+                        LocalConnection.this.notifyAll();
+                    }
+                }
+            });
+        }
+
+        void start() {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            }, "MonkeyLocalReader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Reader thread body: pass complete lines to the source until the
+         * client goes away or is dropped.
+         */
+        private void read() {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            try {
+                InputStream in = socket.getInputStream();
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    lastReadTime = SystemClock.uptimeMillis();
+                    if (!processInput(buffer, count)) {
+                        break;
+                    }
+                }
+                if (count < 0 && !offerLastLine()) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                if (!isClosed()) {
+                    Log.d(TAG, "Connection failed: " + e.getMessage());
+                }
+            }
+            if (!source.isClosed()) {
+                // Let the source execute what it has read so far, the socket
+                // is closed once it is done.
+                ended = true;
+                source.offerEnd();
+                schedule();
+            }
+        }
+
+        /**
+         * Split the bytes read into lines, waiting whenever the source asks
+         * for a pause.
+         *
+         * @return false to stop reading.
+         */
+        private boolean processInput(byte[] buffer, int count) {
+            boolean offered = false;
+            for (int i = 0; i < count; i++) {
+                byte b = buffer[i];
+                if (b != '\n') {
+                    if (!appendToLine(b)) {
+                        return false;
+                    }
+                    continue;
+                }
+                offered = true;
+                if (!offerLine()) {
+                    if (source.isClosed()) {
+                        // never said hello
+                        close();
+                        return false;
+                    }
+                    readPaused = true;
+                    schedule();
+                    offered = false;
+                    if (!awaitResume()) {
+                        return false;
+                    }
+                }
+            }
+            midLine = lineLength > 0;
+            if (offered) {
+                schedule();
+            }
+            return true;
+        }
+
+        /**
+         * Wait until the source caught up with the requests.
+         *
+         * @return false if the connection was closed meanwhile.
+         */
+        private synchronized boolean awaitResume() {
+            try {
+                while (!resumed && !closed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                return false;
+            }
+            resumed = false;
+            readPaused = false;
+            return !closed;
+        }
+
+        @Override
+        boolean isMidLine() {
+            return midLine;
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        void hangUp() {
+            // Waking the reader makes it end the source.
+            close();
+        }
+
+        @Override
+        void finish() {
+            close();
+        }
+
+        /**
+         * Close the socket. May be called from any thread.
+         */
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                notifyAll();
+            }
+            localClients.remove(this);
+            try {
+                // Shutting down wakes a reader blocked in read.
+                socket.shutdownInput();
+            } catch (IOException e) {
+                // already shut down
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.d(TAG, "Close failed: " + e.getMessage());
+            }
+            Logger.out.println("close local client");
+        }
+    }
+}
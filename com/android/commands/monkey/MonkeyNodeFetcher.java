@@ -0,0 +1,237 @@
+/*
+ * Copyright 2011, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.accessibilityservice.IAccessibilityInteractionConnectionCallback;
+import android.accessibilityservice.IAccessibilityServiceConnection;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.accessibility.AccessibilityInteractionClient;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+/**
+ * Fetches the nodes of a hierarchy in batches.
+ * <p>
+ * Asking for a node with AccessibilityNodeInfo.getChild() costs a binder call
+ * per node. Instead, each request made here asks the app to send the node
+ * together with its siblings and as many of its descendants as fit into one
+ * reply, and keeps them until they are asked for. Walking a hierarchy in
+ * pre-order with {@link #getChild} then needs one request for every batch
+ * rather than one for every node.
+ * <p>
+ * A fetcher is used by one thread for one walk, and {@link #release()}d after
+ * it. Where the request can't be made, because the platform delivers its
+ * results differently or doesn't have the call at all, nodes are fetched one
+ * at a time like before. So is a node whose batch didn't arrive in time.
+ */
+public class MonkeyNodeFetcher {
+    private static final String TAG = "MonkeyNodeFetcher";
+
+    // How long to wait for the app to send a batch, as the platform does.
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    // Android 13 sends the prefetched nodes through a callback method of its
+    // own, which the callback below doesn't have.
+    private static final int LAST_SUPPORTED_SDK = 32;
+
+    private static final int PREFETCH_FLAGS = AccessibilityNodeInfo.FLAG_PREFETCH_SIBLINGS
+            | AccessibilityNodeInfo.FLAG_PREFETCH_DESCENDANTS;
+
+    private static final AtomicInteger sInteractionIds = new AtomicInteger();
+    private static volatile boolean sBatchesFailed = Build.VERSION.SDK_INT > LAST_SUPPORTED_SDK;
+
+    private static final ResultCallback sCallback = new ResultCallback();
+
+    private final int connectionId;
+    // The nodes received and not asked for yet, by source node id.
+    private final Map<Long, AccessibilityNodeInfo> batch = new HashMap<Long, AccessibilityNodeInfo>();
+    private int requests;
+
+    public MonkeyNodeFetcher() {
+        connectionId = MonkeySourceNetworkViews.sUiTestAutomationBridge.getConnectionId();
+    }
+
+    /**
+     * @return the node, or null if it no longer exists. The caller owns it.
+     */
+    public AccessibilityNodeInfo fetch(int windowId, long sourceNodeId) {
+        AccessibilityNodeInfo info = batch.remove(sourceNodeId);
+        if (info != null) {
+            return info;
+        }
+        if (!sBatchesFailed && requestBatch(windowId, sourceNodeId)) {
+            return batch.remove(sourceNodeId);
+        }
+        return AccessibilityInteractionClient.getInstance().findAccessibilityNodeInfoByAccessibilityId(connectionId,
+                windowId, sourceNodeId, false, 0, null);
+    }
+
+    /**
+     * Like parent.getChild(index), from the current batch where possible.
+     *
+     * @return the child, or null if it no longer exists. The caller owns it.
+     */
+    public AccessibilityNodeInfo getChild(AccessibilityNodeInfo parent, int index) {
+        if (sBatchesFailed) {
+            return parent.getChild(index);
+        }
+        return fetch(parent.getWindowId(), parent.getChildId(index));
+    }
+
+    /**
+     * @return how many batches were requested.
+     */
+    public int getRequestCount() {
+        return requests;
+    }
+
+    /**
+     * Recycle the nodes that were fetched but not asked for.
+     */
+    public void release() {
+        for (AccessibilityNodeInfo info : batch.values()) {
+            info.recycle();
+        }
+        batch.clear();
+    }
+
+    /**
+     * Ask the app for a node, its siblings and its descendants, and add them
+     * to the batch.
+     *
+     * @return false if the request failed and the node has to be fetched
+     *         another way.
+     */
+    private boolean requestBatch(int windowId, long sourceNodeId) {
+        int interactionId = sInteractionIds.incrementAndGet();
+        List<AccessibilityNodeInfo> infos;
+        // The result may arrive before the request returns.
+        sCallback.expect(interactionId);
+        try {
+            IAccessibilityServiceConnection connection = AccessibilityInteractionClient.getConnection(connectionId);
+            if (connection == null) {
+                sCallback.cancel(interactionId);
+                return false;
+            }
+            requests++;
+            String[] packageNames = connection.findAccessibilityNodeInfoByAccessibilityId(windowId, sourceNodeId,
+                    interactionId, sCallback, PREFETCH_FLAGS, Thread.currentThread().getId(), null);
+            if (packageNames == null) {
+                // The window is gone, so is the node.
+                sCallback.cancel(interactionId);
+                return true;
+            }
+            infos = sCallback.await(interactionId);
+        } catch (InterruptedException e) {
+            sCallback.cancel(interactionId);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            sCallback.cancel(interactionId);
+            return batchesFailed(e);
+        } catch (LinkageError e) {
+            sCallback.cancel(interactionId);
+            return batchesFailed(e);
+        }
+        if (infos == null) {
+            // Timed out, the app may be busy. An empty batch would make the
+            // node look deleted, so fetch it on its own instead.
+            Log.w(TAG, "Fetching a batch of nodes timed out");
+            return false;
+        }
+        for (AccessibilityNodeInfo info : infos) {
+            if (info == null) {
+                continue;
+            }
+            info.setConnectionId(connectionId);
+            info.setSealed(true);
+            AccessibilityNodeInfo old = batch.put(info.getSourceNodeId(), info);
+            if (old != null) {
+                old.recycle();
+            }
+        }
+        return true;
+    }
+
+    private static boolean batchesFailed(Throwable e) {
+        Log.w(TAG, "Fetching nodes in batches failed, fetching them one at a time", e);
+        sBatchesFailed = true;
+        return false;
+    }
+
+    /**
+     * Receives the batches from the apps, for all fetchers.
+     */
+    private static class ResultCallback extends IAccessibilityInteractionConnectionCallback.Stub {
+        // The interaction ids expected, and the results that arrived for them
+        // or null. Guarded by this.
+        private final Map<Integer, List<AccessibilityNodeInfo>> results = new HashMap<Integer, List<AccessibilityNodeInfo>>();
+
+        @Override
+        public void setFindAccessibilityNodeInfoResult(AccessibilityNodeInfo info, int interactionId) {
+            setFindAccessibilityNodeInfosResult(
+                    info != null ? Collections.singletonList(info) : null, interactionId);
+        }
+
+        @Override
+        public synchronized void setFindAccessibilityNodeInfosResult(List<AccessibilityNodeInfo> infos,
+                int interactionId) {
+            if (!results.containsKey(interactionId)) {
+                // Arrived after its fetcher gave up.
+                return;
+            }
+            results.put(interactionId, infos != null ? infos : Collections.<AccessibilityNodeInfo>emptyList());
+            notifyAll();
+        }
+
+        @Override
+        public void setPerformAccessibilityActionResult(boolean succeeded, int interactionId) {
+        }
+
+        synchronized void expect(int interactionId) {
+            results.put(interactionId, null);
+        }
+
+        synchronized void cancel(int interactionId) {
+            results.remove(interactionId);
+        }
+
+        /**
+         * @return the nodes sent for interactionId, or null on timeout.
+         */
+        synchronized List<AccessibilityNodeInfo> await(int interactionId) throws InterruptedException {
+            long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+            List<AccessibilityNodeInfo> infos;
+            while ((infos = results.get(interactionId)) == null) {
+                long left = deadline - SystemClock.uptimeMillis();
+                if (left <= 0) {
+                    break;
+                }
+                wait(left);
+            }
+            results.remove(interactionId);
+            return infos;
+        }
+    }
+}
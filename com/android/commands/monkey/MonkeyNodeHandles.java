@@ -0,0 +1,213 @@
+/*
+ * Copyright 2011, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityInteractionClient;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+/**
+ * The node handles of one session: small numbers standing for nodes a client
+ * looked up, so later queries on the same node don't look it up again.
+ * <p>
+ * A handle keeps the node it was created for until an accessibility event
+ * may have changed the node. After that the node is fetched again by its ids
+ * the next time the handle is used, which is one binder call, and the handle
+ * stops working once the node is gone. Events about a node's text only affect
+ * that node; everything else concerning its window affects all handles of
+ * the window, as the ancestors of a node aren't known.
+ * <p>
+ * Only the LIMIT most recently created handles are kept.
+ */
+public class MonkeyNodeHandles {
+    private static final int LIMIT = 256;
+
+    private static final int IGNORED_EVENTS = AccessibilityEvent.TYPE_VIEW_HOVER_ENTER
+            | AccessibilityEvent.TYPE_VIEW_HOVER_EXIT | AccessibilityEvent.TYPE_TOUCH_EXPLORATION_GESTURE_START
+            | AccessibilityEvent.TYPE_TOUCH_EXPLORATION_GESTURE_END | AccessibilityEvent.TYPE_ANNOUNCEMENT
+            | AccessibilityEvent.TYPE_VIEW_TEXT_TRAVERSED_AT_MOVEMENT_GRANULARITY
+            | AccessibilityEvent.TYPE_GESTURE_DETECTION_START | AccessibilityEvent.TYPE_GESTURE_DETECTION_END
+            | AccessibilityEvent.TYPE_TOUCH_INTERACTION_START | AccessibilityEvent.TYPE_TOUCH_INTERACTION_END
+            | AccessibilityEvent.TYPE_NOTIFICATION_STATE_CHANGED;
+
+    // Content changes that don't affect other nodes than the source.
+    private static final int NODE_CONTENT_CHANGES = AccessibilityEvent.CONTENT_CHANGE_TYPE_TEXT
+            | AccessibilityEvent.CONTENT_CHANGE_TYPE_CONTENT_DESCRIPTION;
+
+    // The tables of the sessions that created handles.
+    private static final CopyOnWriteArrayList<MonkeyNodeHandles> sTables = new CopyOnWriteArrayList<MonkeyNodeHandles>();
+
+    private static class Handle {
+        final int windowId;
+        final long sourceNodeId;
+        // The node, or null if it has to be fetched again.
+        AccessibilityNodeInfo node;
+        // Counts the events that affected the node, so a node fetched while
+        // another event arrived isn't taken as current.
+        int invalidations;
+
+        Handle(int windowId, long sourceNodeId) {
+            this.windowId = windowId;
+            this.sourceNodeId = sourceNodeId;
+        }
+
+        void invalidate() {
+            node = null;
+            invalidations++;
+        }
+    }
+
+    // In the order of creation. Guarded by this.
+    private final LinkedHashMap<Integer, Handle> handles = new LinkedHashMap<Integer, Handle>();
+    private int nextHandle = 1;
+    private boolean registered;
+
+    /**
+     * Create a handle for a node, or find the one it already has.
+     *
+     * @param node    the node.
+     * @param version the change version read before the node was looked up,
+     *                see MonkeySourceNetworkViews.getChangeVersion().
+     * @return the handle.
+     */
+    public synchronized int add(AccessibilityNodeInfo node, long version) {
+        if (!registered) {
+            sTables.add(this);
+            registered = true;
+        }
+        int windowId = node.getWindowId();
+        long sourceNodeId = node.getSourceNodeId();
+        Map.Entry<Integer, Handle> found = null;
+        for (Map.Entry<Integer, Handle> e : handles.entrySet()) {
+            if (e.getValue().windowId == windowId && e.getValue().sourceNodeId == sourceNodeId) {
+                found = e;
+                break;
+            }
+        }
+        int handle;
+        Handle h;
+        if (found != null) {
+            handle = found.getKey();
+            h = found.getValue();
+        } else {
+            if (handles.size() == LIMIT) {
+                Iterator<Integer> oldest = handles.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            handle = nextHandle++;
+            h = new Handle(windowId, sourceNodeId);
+            handles.put(handle, h);
+        }
+        // An event may have arrived while the node was looked up.
+        if (MonkeySourceNetworkViews.getChangeVersion() == version) {
+            h.node = node;
+        } else {
+            h.invalidate();
+        }
+        return handle;
+    }
+
+    /**
+     * @return the node of a handle, or null if there is no such handle or its
+     *         node no longer exists.
+     */
+    public AccessibilityNodeInfo get(int handle) {
+        Handle h;
+        int invalidations;
+        synchronized (this) {
+            h = handles.get(handle);
+            if (h == null) {
+                return null;
+            }
+            if (h.node != null) {
+                return h.node;
+            }
+            invalidations = h.invalidations;
+        }
+        // Don't hold up the events while fetching.
+        int connectionId = MonkeySourceNetworkViews.sUiTestAutomationBridge.getConnectionId();
+        AccessibilityNodeInfo node = AccessibilityInteractionClient.getInstance()
+                .findAccessibilityNodeInfoByAccessibilityId(connectionId, h.windowId, h.sourceNodeId, false, 0,
+                        null);
+        synchronized (this) {
+            if (node == null) {
+                handles.remove(handle);
+            } else if (h.invalidations == invalidations) {
+                h.node = node;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * @return false if there was no such handle.
+     */
+    public synchronized boolean release(int handle) {
+        return handles.remove(handle) != null;
+    }
+
+    /**
+     * Drop all handles once the client is gone.
+     */
+    public synchronized void close() {
+        handles.clear();
+        sTables.remove(this);
+        registered = false;
+    }
+
+    /**
+     * Called from the OnAccessibilityEventListener for every event.
+     */
+    public static void onAccessibilityEvent(AccessibilityEvent event) {
+        if (sTables.isEmpty()) {
+            return;
+        }
+        int type = event.getEventType();
+        if ((type & IGNORED_EVENTS) != 0) {
+            return;
+        }
+        int windowId = event.getWindowId();
+        long sourceNodeId = event.getSourceNodeId();
+        boolean allWindows = type == AccessibilityEvent.TYPE_WINDOWS_CHANGED || windowId < 0;
+        boolean wholeWindow = sourceNodeId == AccessibilityNodeInfo.UNDEFINED_NODE_ID
+                || type == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+                || type == AccessibilityEvent.TYPE_VIEW_SCROLLED;
+        if (type == AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED) {
+            int changes = event.getContentChangeTypes();
+            wholeWindow |= changes == AccessibilityEvent.CONTENT_CHANGE_TYPE_UNDEFINED
+                    || (changes & ~NODE_CONTENT_CHANGES) != 0;
+        }
+        for (MonkeyNodeHandles table : sTables) {
+            table.invalidate(allWindows, wholeWindow, windowId, sourceNodeId);
+        }
+    }
+
+    private synchronized void invalidate(boolean allWindows, boolean wholeWindow, int windowId,
+            long sourceNodeId) {
+        for (Handle h : handles.values()) {
+            if (allWindows || (h.windowId == windowId && (wholeWindow || h.sourceNodeId == sourceNodeId))) {
+                h.invalidate();
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2009, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityEvent;
+
+/**
+ * Hands device state changes to the network clients that subscribed to them,
+ * so they don't have to poll getisviewchange.
+ * <p>
+ * Every notification is one line of text, starting with its type and the
+ * uptime in milliseconds it happened at:
+ *
+ * <pre>
+ * window [time] [package] [class]             a window changed its state
+ * content [time] [window id] [change types]  the content of a window changed
+ * activityStarting [time] [package] [class]  an activity is being started
+ * activityResuming [time] [package]          an activity is being resumed
+ * notification [time] [package] [class]       a notification or toast was shown
+ * </pre>
+ */
+public class MonkeyNotifier {
+    public static final int TYPE_WINDOW = 1;
+    public static final int TYPE_CONTENT = 1 << 1;
+    public static final int TYPE_ACTIVITY = 1 << 2;
+    public static final int TYPE_NOTIFICATION = 1 << 3;
+    public static final int TYPE_ALL = TYPE_WINDOW | TYPE_CONTENT | TYPE_ACTIVITY | TYPE_NOTIFICATION;
+
+    /**
+     * Receives the notifications of the types it subscribed to.
+     */
+    public interface Listener {
+        /**
+         * @return the types this listener wants, a combination of TYPE_*.
+         */
+        int getTypes();
+
+        /**
+         * Called on the thread that observed the change, which must not be
+         * held up. Implementations should queue the notification and return.
+         *
+         * @param type         the TYPE_* of the notification.
+         * @param packageName  the package the change concerns, null if it is
+         *                     not known or doesn't belong to one.
+         * @param notification the notification line.
+         */
+        void onNotification(int type, String packageName, String notification);
+    }
+
+    private static final CopyOnWriteArrayList<Listener> sListeners = new CopyOnWriteArrayList<Listener>();
+
+    public static void addListener(Listener listener) {
+        sListeners.addIfAbsent(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        sListeners.remove(listener);
+    }
+
+    /**
+     * Parse the arguments of
+     * "subscribe [window|content|activity|notification|all] ...".
+     *
+     * @param args the type names.
+     * @return the TYPE_* combination, TYPE_ALL for no names, or 0 if a name is
+     *         unknown.
+     */
+    public static int parseTypes(List<String> args) {
+        if (args.isEmpty()) {
+            return TYPE_ALL;
+        }
+        int types = 0;
+        for (String arg : args) {
+            if ("window".equals(arg)) {
+                types |= TYPE_WINDOW;
+            } else if ("content".equals(arg)) {
+                types |= TYPE_CONTENT;
+            } else if ("activity".equals(arg)) {
+                types |= TYPE_ACTIVITY;
+            } else if ("notification".equals(arg)) {
+                types |= TYPE_NOTIFICATION;
+            } else if ("all".equals(arg)) {
+                types |= TYPE_ALL;
+            } else {
+                return 0;
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Called from the OnAccessibilityEventListener for every event.
+     */
+    public static void onAccessibilityEvent(AccessibilityEvent event) {
+        if (sListeners.isEmpty()) {
+            return;
+        }
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+                if (isWanted(TYPE_WINDOW)) {
+                    publish(TYPE_WINDOW, toString(event.getPackageName()), "window " + event.getEventTime() + " "
+                            + event.getPackageName() + " " + event.getClassName());
+                }
+                break;
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+                if (isWanted(TYPE_CONTENT)) {
+                    publish(TYPE_CONTENT, null, "content " + event.getEventTime() + " " + event.getWindowId() + " "
+                            + event.getContentChangeTypes());
+                }
+                break;
+            case AccessibilityEvent.TYPE_NOTIFICATION_STATE_CHANGED:
+                // Toasts are announced this way too.
+                if (isWanted(TYPE_NOTIFICATION)) {
+                    publish(TYPE_NOTIFICATION, toString(event.getPackageName()), "notification "
+                            + event.getEventTime() + " " + event.getPackageName() + " " + event.getClassName());
+                }
+                break;
+        }
+    }
+
+    /**
+     * Called from the IActivityController when an activity is being started.
+     */
+    public static void activityStarting(Intent intent, String pkg) {
+        if (!isWanted(TYPE_ACTIVITY)) {
+            return;
+        }
+        ComponentName component = intent != null ? intent.getComponent() : null;
+        publish(TYPE_ACTIVITY, pkg, "activityStarting " + SystemClock.uptimeMillis() + " " + pkg + " "
+                + (component != null ? component.getClassName() : null));
+    }
+
+    /**
+     * Called from the IActivityController when an activity is being resumed.
+     */
+    public static void activityResuming(String pkg) {
+        if (!isWanted(TYPE_ACTIVITY)) {
+            return;
+        }
+        publish(TYPE_ACTIVITY, pkg, "activityResuming " + SystemClock.uptimeMillis() + " " + pkg);
+    }
+
+    // Only build the notification text if somebody reads it.
+    private static boolean isWanted(int type) {
+        for (Listener listener : sListeners) {
+            if ((listener.getTypes() & type) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void publish(int type, String packageName, String notification) {
+        for (Listener listener : sListeners) {
+            if ((listener.getTypes() & type) != 0) {
+                listener.onNotification(type, packageName, notification);
+            }
+        }
+    }
+
+    private static String toString(CharSequence s) {
+        return s != null ? s.toString() : null;
+    }
+}
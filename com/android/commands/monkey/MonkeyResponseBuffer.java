@@ -0,0 +1,332 @@
+/*
+ * Copyright 2011, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable buffer a response message is written into as UTF-8, as text or
+ * as JSON, without building a String or a JSONObject tree first.
+ * <p>
+ * The JSON written is byte for byte what org.json would write for the same
+ * puts: no whitespace, strings escaped the way JSONStringer does, and a
+ * field whose value is null left out, as JSONObject.put() removes it.
+ * Commas between fields and array elements are inserted automatically.
+ * <p>
+ * A buffer is kept per worker thread, see {@link #get()}. The message is
+ * handed to the response writer without being copied, so it is only valid
+ * until the thread writes its next response.
+ */
+public class MonkeyResponseBuffer {
+    // Buffers that grew beyond this are dropped after use instead of being
+    // kept by the thread.
+    private static final int MAX_RETAINED = 1024 * 1024;
+
+    private static final byte[] HEX = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f',
+    };
+
+    private static final ThreadLocal<MonkeyResponseBuffer> BUFFER = new ThreadLocal<MonkeyResponseBuffer>() {
+        @Override
+        protected MonkeyResponseBuffer initialValue() {
+            return new MonkeyResponseBuffer();
+        }
+    };
+
+    private byte[] buf = new byte[16 * 1024];
+    private int count;
+    // Whether the open object or array at each nesting level has an element
+    // yet, so the next one needs a comma.
+    private boolean[] hasElement = new boolean[32];
+    private int depth;
+
+    /**
+     * @return the empty buffer of the calling thread.
+     */
+    public static MonkeyResponseBuffer get() {
+        MonkeyResponseBuffer buffer = BUFFER.get();
+        if (buffer.buf.length > MAX_RETAINED) {
+            buffer = new MonkeyResponseBuffer();
+            BUFFER.set(buffer);
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    public void reset() {
+        count = 0;
+        depth = 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return a successful return carrying what was written as its message.
+     */
+    public MonkeySourceNetwork.MonkeyCommandReturn toReturn() {
+        return new MonkeySourceNetwork.MonkeyCommandReturn(true, buf, count);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, count, StandardCharsets.UTF_8);
+    }
+
+    private void ensure(int extra) {
+        if (count + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(count + extra, buf.length * 2));
+        }
+    }
+
+    // text
+
+    public MonkeyResponseBuffer append(char c) {
+        if (c < 0x80) {
+            ensure(1);
+            buf[count++] = (byte) c;
+        } else {
+            appendUtf8(String.valueOf(c), 0, 1);
+        }
+        return this;
+    }
+
+    /**
+     * Append s, or "null" like StringBuilder does.
+     */
+    public MonkeyResponseBuffer append(String s) {
+        if (s == null) {
+            s = "null";
+        }
+        appendUtf8(s, 0, s.length());
+        return this;
+    }
+
+    public MonkeyResponseBuffer append(boolean b) {
+        return append(b ? "true" : "false");
+    }
+
+    public MonkeyResponseBuffer append(int i) {
+        return append((long) i);
+    }
+
+    public MonkeyResponseBuffer append(long l) {
+        if (l == Long.MIN_VALUE) {
+            return append(Long.toString(l));
+        }
+        ensure(20);
+        if (l < 0) {
+            buf[count++] = '-';
+            l = -l;
+        }
+        int digits = 1;
+        for (long rest = l / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        int end = count + digits;
+        for (int p = end - 1; p >= count; p--) {
+            buf[p] = (byte) ('0' + l % 10);
+            l /= 10;
+        }
+        count = end;
+        return this;
+    }
+
+    /**
+     * Encode chars [start, end) of s like String.getBytes(UTF_8) does,
+     * including replacing unpaired surrogates by '?'.
+     */
+    private void appendUtf8(String s, int start, int end) {
+        ensure((end - start) * 3);
+        byte[] b = buf;
+        int n = count;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b[n++] = (byte) c;
+            } else if (c < 0x800) {
+                b[n++] = (byte) (0xc0 | c >> 6);
+                b[n++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    b[n++] = (byte) (0xf0 | cp >> 18);
+                    b[n++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                    b[n++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                    b[n++] = (byte) (0x80 | cp & 0x3f);
+                } else {
+                    b[n++] = '?';
+                }
+            } else {
+                b[n++] = (byte) (0xe0 | c >> 12);
+                b[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+                b[n++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        count = n;
+    }
+
+    // json
+
+    public MonkeyResponseBuffer beginObject() {
+        return open('{');
+    }
+
+    public MonkeyResponseBuffer endObject() {
+        return close('}');
+    }
+
+    public MonkeyResponseBuffer beginArray() {
+        return open('[');
+    }
+
+    public MonkeyResponseBuffer endArray() {
+        return close(']');
+    }
+
+    private MonkeyResponseBuffer open(char c) {
+        separate();
+        if (depth == hasElement.length) {
+            hasElement = Arrays.copyOf(hasElement, depth * 2);
+        }
+        hasElement[depth++] = false;
+        return append(c);
+    }
+
+    private MonkeyResponseBuffer close(char c) {
+        depth--;
+        return append(c);
+    }
+
+    // Write the comma before an element, unless it is the first one.
+    private void separate() {
+        if (depth > 0) {
+            if (hasElement[depth - 1]) {
+                append(',');
+            }
+            hasElement[depth - 1] = true;
+        }
+    }
+
+    /**
+     * Start a field of the open object. The value has to follow.
+     */
+    public MonkeyResponseBuffer name(String name) {
+        separate();
+        quote(name);
+        append(':');
+        // The value must not write a comma of its own.
+        hasElement[depth - 1] = false;
+        return this;
+    }
+
+    public MonkeyResponseBuffer value(String value) {
+        separate();
+        if (value == null) {
+            return append("null");
+        }
+        quote(value);
+        return this;
+    }
+
+    public MonkeyResponseBuffer value(long value) {
+        separate();
+        return append(value);
+    }
+
+    public MonkeyResponseBuffer value(boolean value) {
+        separate();
+        return append(value);
+    }
+
+    public MonkeyResponseBuffer field(String name, long value) {
+        return name(name).value(value);
+    }
+
+    public MonkeyResponseBuffer field(String name, boolean value) {
+        return name(name).value(value);
+    }
+
+    /**
+     * Write a string field, or nothing if value is null.
+     */
+    public MonkeyResponseBuffer field(String name, String value) {
+        if (value == null) {
+            return this;
+        }
+        return name(name).value(value);
+    }
+
+    /**
+     * Write s as a JSON string, escaped like JSONStringer does.
+     */
+    private void quote(String s) {
+        append('"');
+        int length = s.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c > '/' && c != '\\') {
+                continue;
+            }
+            byte escape;
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    escape = (byte) c;
+                    break;
+                case '\t':
+                    escape = 't';
+                    break;
+                case '\b':
+                    escape = 'b';
+                    break;
+                case '\n':
+                    escape = 'n';
+                    break;
+                case '\r':
+                    escape = 'r';
+                    break;
+                case '\f':
+                    escape = 'f';
+                    break;
+                default:
+                    if (c > 0x1f) {
+                        continue;
+                    }
+                    escape = 'u';
+                    break;
+            }
+            appendUtf8(s, start, i);
+            start = i + 1;
+            ensure(6);
+            buf[count++] = '\\';
+            buf[count++] = escape;
+            if (escape == 'u') {
+                buf[count++] = '0';
+                buf[count++] = '0';
+                buf[count++] = HEX[c >> 4];
+                buf[count++] = HEX[c & 0xf];
+            }
+        }
+        appendUtf8(s, start, length);
+        append('"');
+    }
+}
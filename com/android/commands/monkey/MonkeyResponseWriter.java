@@ -0,0 +1,193 @@
+/*
+ * Copyright 2009, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes command responses back to a network client.
+ * <p>
+ * Two wire formats are supported. The default line format writes one
+ * "OK[:message]" or "ERROR[:message]" line per response. Once a client has
+ * negotiated the framed format (see "protocol framed"), every response is
+ * written as a binary frame instead:
+ *
+ * <pre>
+ * int32  request id (big endian, echoed from the request line)
+ * byte   status (STATUS_OK, STATUS_ERROR or STATUS_EVENT)
+ * int32  payload length (big endian)
+ * byte[] payload (UTF-8 message, without the "OK:" / "ERROR:" prefix)
+ * </pre>
+ *
+ * Frames never need to be scanned for a sentinel, so messages may contain
+ * newlines and clients may pipeline requests.
+ * <p>
+ * Commands may also answer with binary data, e.g. "takescreenshot binary". In
+ * the framed format the data is the payload of an OK frame. In the line format
+ * an "OK:[length]" line is followed by exactly that many bytes of data.
+ * <p>
+ * Clients that subscribed to notifications also receive them in between
+ * responses, as "EVENT:[notification]" lines or STATUS_EVENT frames carrying
+ * the request id of the subscribe request.
+ */
+public class MonkeyResponseWriter {
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    public static final byte STATUS_EVENT = 2;
+
+    // Size of the fixed frame header: request id, status and length.
+    public static final int FRAME_HEADER_SIZE = 9;
+
+    private static final byte[] OK_BYTES = "OK".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ERROR_BYTES = "ERROR".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EVENT_BYTES = "EVENT".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EMPTY = new byte[0];
+
+    private final OutputStream out;
+    private final byte[] header = new byte[FRAME_HEADER_SIZE];
+    private boolean framed;
+
+    /**
+     * @param out the stream to write responses to. It should be buffered,
+     *            every response is flushed once it is complete.
+     */
+    public MonkeyResponseWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Switch between the line format and the framed format. Responses already
+     * written are not affected.
+     */
+    public synchronized void setFramed(boolean framed) {
+        this.framed = framed;
+    }
+
+    public synchronized boolean isFramed() {
+        return framed;
+    }
+
+    /**
+     * Write one response.
+     *
+     * @param requestId the id of the request being answered, only used in the
+     *                  framed format.
+     * @param success   whether the command succeeded.
+     * @param message   the message to return, or null for none.
+     */
+    public synchronized void write(int requestId, boolean success, String message) throws IOException {
+        byte[] payload = message != null ? message.getBytes(StandardCharsets.UTF_8) : null;
+        if (framed) {
+            writeFrameHeader(requestId, success ? STATUS_OK : STATUS_ERROR, payload != null ? payload.length : 0);
+            out.write(payload != null ? payload : EMPTY);
+        } else {
+            out.write(success ? OK_BYTES : ERROR_BYTES);
+            if (payload != null) {
+                out.write(':');
+                out.write(payload);
+            }
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Write one response whose message is already UTF-8 encoded, the same way
+     * as {@link #write(int, boolean, String)} writes it.
+     *
+     * @param requestId the id of the request being answered, only used in the
+     *                  framed format.
+     * @param success   whether the command succeeded.
+     * @param message   the buffer holding the encoded message.
+     * @param offset    where the message starts in the buffer.
+     * @param length    the number of bytes of the message.
+     */
+    public synchronized void write(int requestId, boolean success, byte[] message, int offset, int length)
+            throws IOException {
+        if (framed) {
+            writeFrameHeader(requestId, success ? STATUS_OK : STATUS_ERROR, length);
+        } else {
+            out.write(success ? OK_BYTES : ERROR_BYTES);
+            out.write(':');
+        }
+        out.write(message, offset, length);
+        if (!framed) {
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    /**
+     * Write a successful response carrying binary data. The data is written to
+     * the stream as is, without being encoded or copied first.
+     *
+     * @param requestId the id of the request being answered, only used in the
+     *                  framed format.
+     * @param data      the buffer holding the data.
+     * @param offset    where the data starts in the buffer.
+     * @param length    the number of bytes of data.
+     */
+    public synchronized void writeData(int requestId, byte[] data, int offset, int length) throws IOException {
+        if (framed) {
+            writeFrameHeader(requestId, STATUS_OK, length);
+        } else {
+            out.write(OK_BYTES);
+            out.write(':');
+            out.write(Integer.toString(length).getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+        out.write(data, offset, length);
+        out.flush();
+    }
+
+    /**
+     * Write one notification. May be called from any thread, it never ends up
+     * in the middle of a response.
+     *
+     * @param requestId    the id of the subscribe request, only used in the
+     *                     framed format.
+     * @param notification the notification line.
+     */
+    public synchronized void writeEvent(int requestId, String notification) throws IOException {
+        byte[] payload = notification.getBytes(StandardCharsets.UTF_8);
+        if (framed) {
+            writeFrameHeader(requestId, STATUS_EVENT, payload.length);
+            out.write(payload);
+        } else {
+            out.write(EVENT_BYTES);
+            out.write(':');
+            out.write(payload);
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    private void writeFrameHeader(int requestId, byte status, int length) throws IOException {
+        header[0] = (byte) (requestId >>> 24);
+        header[1] = (byte) (requestId >>> 16);
+        header[2] = (byte) (requestId >>> 8);
+        header[3] = (byte) requestId;
+        header[4] = status;
+        header[5] = (byte) (length >>> 24);
+        header[6] = (byte) (length >>> 16);
+        header[7] = (byte) (length >>> 8);
+        header[8] = (byte) length;
+        out.write(header, 0, FRAME_HEADER_SIZE);
+    }
+}
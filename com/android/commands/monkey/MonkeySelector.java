@@ -0,0 +1,1005 @@
+/*
+ * Copyright 2011, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A compiled selector finding nodes in a {@link MonkeyViewSnapshot}.
+ * <p>
+ * Selectors are a subset of XPath 1.0, over a document whose elements are the
+ * nodes of the snapshot, named after their class:
+ *
+ * <pre>
+ * //Button[@text='OK']                          buttons labelled OK
+ * //*[@resource-id='com.xxx:id/title']          nodes by resource id
+ * //*[matches(@text, '^\d+ items?$')]           text matching a regex
+ * //ListView/*[2]                               second child of list views
+ * (//*[@clickable])[1]                          first clickable node
+ * //*[@text='Wi-Fi']/ancestor::*[@clickable][1] clickable ancestor of a text
+ * //LinearLayout[./TextView[@text='Name']]      layouts with such a child
+ * </pre>
+ *
+ * Class names match either the full name or the part after the last dot.
+ * Supported are the axes child, descendant, descendant-or-self, parent,
+ * ancestor, ancestor-or-self, self, following-sibling and preceding-sibling,
+ * the abbreviations / // . .. and *, predicates with positions, and / or,
+ * = and !=, the union |, and the functions contains, starts-with, ends-with,
+ * matches, not, true, false, position, last, count and string-length.
+ * <p>
+ * The attributes are text, content-desc, class, package, resource-id, bounds,
+ * index, and the booleans checkable, checked, clickable, long-clickable,
+ * editable, enabled, focusable, focused, scrollable, selected, visible and
+ * password. Boolean attributes can be tested on their own, [@clickable], or
+ * compared with 'true' and 'false'. Missing texts compare unequal to
+ * everything.
+ * <p>
+ * Compiled selectors are immutable and kept in a small LRU cache, so repeated
+ * queries don't parse the selector again.
+ */
+public class MonkeySelector {
+    // How many compiled selectors are kept.
+    private static final int CACHE_SIZE = 64;
+
+    private static final Map<String, MonkeySelector> sCache = new LinkedHashMap<String, MonkeySelector>(16, 0.75f,
+            true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MonkeySelector> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // The document node above the root of the snapshot.
+    private static final int DOCUMENT = -1;
+
+    private final String source;
+    private final Expr expr;
+
+    private MonkeySelector(String source, Expr expr) {
+        this.source = source;
+        this.expr = expr;
+    }
+
+    /**
+     * Compile a selector, or take it from the cache.
+     *
+     * @throws MonkeyViewException if the selector is not valid.
+     */
+    public static MonkeySelector compile(String selector) throws MonkeyViewException {
+        synchronized (sCache) {
+            MonkeySelector compiled = sCache.get(selector);
+            if (compiled != null) {
+                return compiled;
+            }
+        }
+        Parser parser = new Parser(selector);
+        Expr expr = parser.parse();
+        if (!(expr instanceof NodeSetExpr)) {
+            throw new MonkeyViewException("Selector doesn't select nodes: " + selector);
+        }
+        MonkeySelector compiled = new MonkeySelector(selector, expr);
+        synchronized (sCache) {
+            sCache.put(selector, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * @return the indexes of the matching nodes, in document order.
+     */
+    public int[] find(MonkeyViewSnapshot snapshot) {
+        return (int[]) expr.evaluate(new Context(snapshot, DOCUMENT, 1, 1));
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    /**
+     * The node an expression is evaluated for.
+     */
+    private static class Context {
+        final MonkeyViewSnapshot snapshot;
+        final int node;
+        final int position;
+        final int size;
+
+        Context(MonkeyViewSnapshot snapshot, int node, int position, int size) {
+            this.snapshot = snapshot;
+            this.node = node;
+            this.position = position;
+            this.size = size;
+        }
+    }
+
+    /**
+     * An expression. Values are Strings, Doubles, Booleans, and int[] node sets
+     * in document order; null stands for a missing attribute.
+     */
+    private abstract static class Expr {
+        abstract Object evaluate(Context context);
+    }
+
+    /**
+     * An expression whose value is a node set.
+     */
+    private abstract static class NodeSetExpr extends Expr {
+    }
+
+    private static boolean toBoolean(Object value) {
+        if (value == null) {
+            return false;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value instanceof Double) {
+            double d = (Double) value;
+            return d != 0 && !Double.isNaN(d);
+        } else if (value instanceof String) {
+            return !((String) value).isEmpty();
+        }
+        return ((int[]) value).length > 0;
+    }
+
+    private static String toText(Object value) {
+        if (value == null || value instanceof int[]) {
+            return null;
+        } else if (value instanceof Double) {
+            double d = (Double) value;
+            return d == (long) d ? Long.toString((long) d) : Double.toString(d);
+        }
+        return value.toString();
+    }
+
+    private static double toNumber(Object value) {
+        if (value instanceof Double) {
+            return (Double) value;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        }
+        String text = toText(value);
+        if (text == null) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(text.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static class Literal extends Expr {
+        final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(Context context) {
+            return value;
+        }
+    }
+
+    private static final String[] ATTRIBUTES = {
+        "text", "content-desc", "class", "package", "resource-id", "bounds", "index",
+        "checkable", "checked", "clickable", "long-clickable", "editable", "enabled", "focusable", "focused",
+        "scrollable", "selected", "visible", "password",
+    };
+
+    private static final int[] ATTRIBUTE_FLAGS = {
+        MonkeyViewSnapshot.FLAG_CHECKABLE, MonkeyViewSnapshot.FLAG_CHECKED, MonkeyViewSnapshot.FLAG_CLICKABLE,
+        MonkeyViewSnapshot.FLAG_LONG_CLICKABLE, MonkeyViewSnapshot.FLAG_EDITABLE, MonkeyViewSnapshot.FLAG_ENABLED,
+        MonkeyViewSnapshot.FLAG_FOCUSABLE, MonkeyViewSnapshot.FLAG_FOCUSED, MonkeyViewSnapshot.FLAG_SCROLLABLE,
+        MonkeyViewSnapshot.FLAG_SELECTED, MonkeyViewSnapshot.FLAG_VISIBLE_TO_USER, MonkeyViewSnapshot.FLAG_PASSWORD,
+    };
+
+    // Index of the first boolean attribute.
+    private static final int FIRST_FLAG_ATTRIBUTE = 7;
+
+    private static class Attribute extends Expr {
+        final int attribute;
+
+        Attribute(int attribute) {
+            this.attribute = attribute;
+        }
+
+        @Override
+        Object evaluate(Context context) {
+            MonkeyViewSnapshot s = context.snapshot;
+            int i = context.node;
+            if (i == DOCUMENT) {
+                return null;
+            }
+            switch (attribute) {
+                case 0:
+                    return s.getText(i);
+                case 1:
+                    return s.getContentDescription(i);
+                case 2:
+                    return s.getClassName(i);
+                case 3:
+                    return s.getPackageName(i);
+                case 4:
+                    return s.getViewIdResourceName(i);
+                case 5:
+                    return s.getBoundsString(i);
+                case 6:
+                    return (double) s.getIndexInParent(i);
+                default:
+                    return s.is(i, ATTRIBUTE_FLAGS[attribute - FIRST_FLAG_ATTRIBUTE]);
+            }
+        }
+    }
+
+    private static class Or extends Expr {
+        final Expr left;
+        final Expr right;
+
+        Or(Expr left, Expr right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(Context context) {
+            return toBoolean(left.evaluate(context)) || toBoolean(right.evaluate(context));
+        }
+    }
+
+    private static class And extends Expr {
+        final Expr left;
+        final Expr right;
+
+        And(Expr left, Expr right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(Context context) {
+            return toBoolean(left.evaluate(context)) && toBoolean(right.evaluate(context));
+        }
+    }
+
+    private static class Equals extends Expr {
+        final Expr left;
+        final Expr right;
+        final boolean negate;
+
+        Equals(Expr left, Expr right, boolean negate) {
+            this.left = left;
+            this.right = right;
+            this.negate = negate;
+        }
+
+        @Override
+        Object evaluate(Context context) {
+            Object a = left.evaluate(context);
+            Object b = right.evaluate(context);
+            if (a == null || b == null) {
+                // A missing attribute is unequal to everything, as in XPath.
+                return false;
+            }
+            boolean equal;
+            if (a instanceof int[] || b instanceof int[]) {
+                equal = toBoolean(a) == toBoolean(b);
+            } else if (a instanceof Boolean && b instanceof Boolean) {
+                equal = a.equals(b);
+            } else if (a instanceof Boolean || b instanceof Boolean) {
+                // [@clickable='true'] compares the text of the boolean.
+                equal = toText(a).equals(toText(b));
+            } else if (a instanceof Double || b instanceof Double) {
+                equal = toNumber(a) == toNumber(b);
+            } else {
+                equal = a.equals(b);
+            }
+            return equal != negate;
+        }
+    }
+
+    private static class Function extends Expr {
+        final String name;
+        final Expr[] args;
+        // The compiled regex of matches() if it is a literal.
+        final Pattern pattern;
+
+        Function(String name, Expr[] args, Pattern pattern) {
+            this.name = name;
+            this.args = args;
+            this.pattern = pattern;
+        }
+
+        @Override
+        Object evaluate(Context context) {
+            if ("position".equals(name)) {
+                return (double) context.position;
+            } else if ("last".equals(name)) {
+                return (double) context.size;
+            } else if ("true".equals(name)) {
+                return true;
+            } else if ("false".equals(name)) {
+                return false;
+            } else if ("not".equals(name)) {
+                return !toBoolean(args[0].evaluate(context));
+            } else if ("count".equals(name)) {
+                Object nodes = args[0].evaluate(context);
+                return (double) (nodes instanceof int[] ? ((int[]) nodes).length : 0);
+            }
+            String text = toText(args[0].evaluate(context));
+            if ("string-length".equals(name)) {
+                return (double) (text != null ? text.length() : 0);
+            }
+            if (text == null) {
+                return false;
+            }
+            if ("matches".equals(name)) {
+                Pattern p = pattern;
+                if (p == null) {
+                    String regex = toText(args[1].evaluate(context));
+                    try {
+                        p = Pattern.compile(regex != null ? regex : "");
+                    } catch (PatternSyntaxException e) {
+                        return false;
+                    }
+                }
+                return p.matcher(text).find();
+            }
+            String part = toText(args[1].evaluate(context));
+            if (part == null) {
+                return false;
+            }
+            if ("contains".equals(name)) {
+                return text.contains(part);
+            } else if ("starts-with".equals(name)) {
+                return text.startsWith(part);
+            }
+            return text.endsWith(part);
+        }
+    }
+
+    private static final String[] AXES = {
+        "child", "descendant", "descendant-or-self", "parent", "ancestor", "ancestor-or-self", "self",
+        "following-sibling", "preceding-sibling",
+    };
+    private static final int CHILD = 0;
+    private static final int DESCENDANT = 1;
+    private static final int DESCENDANT_OR_SELF = 2;
+    private static final int PARENT = 3;
+    private static final int ANCESTOR = 4;
+    private static final int ANCESTOR_OR_SELF = 5;
+    private static final int SELF = 6;
+    private static final int FOLLOWING_SIBLING = 7;
+    private static final int PRECEDING_SIBLING = 8;
+
+    /**
+     * One step of a location path: an axis, a node test and predicates.
+     */
+    private static class Step {
+        final int axis;
+        // Null for node(), "*" for any element, or a class name.
+        final String name;
+        final boolean simpleName;
+        final Expr[] predicates;
+        // Whether a predicate depends on the position of the node.
+        final boolean positional;
+
+        Step(int axis, String name, Expr[] predicates, boolean positional) {
+            this.axis = axis;
+            this.name = name;
+            this.simpleName = name != null && name.indexOf('.') < 0;
+            this.predicates = predicates;
+            this.positional = positional;
+        }
+
+        boolean test(MonkeyViewSnapshot s, int node) {
+            if (name == null) {
+                return true;
+            }
+            if (node == DOCUMENT) {
+                return false;
+            }
+            if ("*".equals(name)) {
+                return true;
+            }
+            String className = s.getClassName(node);
+            if (className == null) {
+                return false;
+            }
+            if (!simpleName) {
+                return className.equals(name);
+            }
+            int length = name.length();
+            int start = className.length() - length;
+            return className.endsWith(name) && (start == 0 || className.charAt(start - 1) == '.');
+        }
+
+        /**
+         * Add the nodes along the axis from node that pass the node test to
+         * out, nearest first on the reverse axes.
+         */
+        void collect(MonkeyViewSnapshot s, int node, IntList out) {
+            int size = s.size();
+            switch (axis) {
+                case SELF:
+                    add(s, node, out);
+                    break;
+                case CHILD:
+                    if (node == DOCUMENT) {
+                        add(s, 0, out);
+                    } else {
+                        int end = s.getSubtreeEnd(node);
+                        for (int c = node + 1; c < end; c = s.getSubtreeEnd(c)) {
+                            add(s, c, out);
+                        }
+                    }
+                    break;
+                case DESCENDANT_OR_SELF:
+                case DESCENDANT: {
+                    if (axis == DESCENDANT_OR_SELF) {
+                        add(s, node, out);
+                    }
+                    int end = node == DOCUMENT ? size : s.getSubtreeEnd(node);
+                    for (int d = node + 1; d < end; d++) {
+                        add(s, d, out);
+                    }
+                    break;
+                }
+                case PARENT:
+                    if (node != DOCUMENT) {
+                        add(s, s.getParent(node), out);
+                    }
+                    break;
+                case ANCESTOR_OR_SELF:
+                case ANCESTOR:
+                    if (axis == ANCESTOR_OR_SELF) {
+                        add(s, node, out);
+                    }
+                    if (node != DOCUMENT) {
+                        int p = node;
+                        do {
+                            p = s.getParent(p);
+                            add(s, p, out);
+                        } while (p != DOCUMENT);
+                    }
+                    break;
+                case FOLLOWING_SIBLING:
+                    if (node > 0) {
+                        int end = s.getSubtreeEnd(s.getParent(node));
+                        for (int c = s.getSubtreeEnd(node); c < end; c = s.getSubtreeEnd(c)) {
+                            add(s, c, out);
+                        }
+                    }
+                    break;
+                case PRECEDING_SIBLING:
+                    if (node > 0) {
+                        int parent = s.getParent(node);
+                        int mark = out.size;
+                        for (int c = parent + 1; c < node; c = s.getSubtreeEnd(c)) {
+                            add(s, c, out);
+                        }
+                        out.reverse(mark);
+                    }
+                    break;
+            }
+        }
+
+        private void add(MonkeyViewSnapshot s, int node, IntList out) {
+            if (test(s, node)) {
+                out.add(node);
+            }
+        }
+    }
+
+    /**
+     * A location path, absolute or relative to the context node.
+     */
+    private static class PathExpr extends NodeSetExpr {
+        final boolean absolute;
+        final Step[] steps;
+
+        PathExpr(boolean absolute, Step[] steps) {
+            this.absolute = absolute;
+            this.steps = steps;
+        }
+
+        @Override
+        Object evaluate(Context context) {
+            MonkeyViewSnapshot s = context.snapshot;
+            int[] nodes = {absolute ? DOCUMENT : context.node};
+            IntList candidates = new IntList();
+            IntList filtered = new IntList();
+            for (Step step : steps) {
+                // Marks are shifted by one to make room for the document.
+                boolean[] marks = new boolean[s.size() + 1];
+                for (int node : nodes) {
+                    candidates.size = 0;
+                    step.collect(s, node, candidates);
+                    for (Expr predicate : step.predicates) {
+                        filter(s, candidates, predicate, filtered);
+                        IntList swap = candidates;
+                        candidates = filtered;
+                        filtered = swap;
+                    }
+                    for (int k = 0; k < candidates.size; k++) {
+                        marks[candidates.data[k] + 1] = true;
+                    }
+                }
+                nodes = toNodeSet(marks);
+                if (nodes.length == 0) {
+                    break;
+                }
+            }
+            return nodes;
+        }
+    }
+
+    /**
+     * Keep the nodes for which the predicate holds. A number selects the node
+     * at that position.
+     */
+    private static void filter(MonkeyViewSnapshot s, IntList nodes, Expr predicate, IntList out) {
+        out.size = 0;
+        for (int k = 0; k < nodes.size; k++) {
+            Object value = predicate.evaluate(new Context(s, nodes.data[k], k + 1, nodes.size));
+            if (value instanceof Double ? (Double) value == k + 1 : toBoolean(value)) {
+                out.add(nodes.data[k]);
+            }
+        }
+    }
+
+    private static int[] toNodeSet(boolean[] marks) {
+        int count = 0;
+        for (boolean mark : marks) {
+            if (mark) {
+                count++;
+            }
+        }
+        int[] nodes = new int[count];
+        int n = 0;
+        for (int i = 0; i < marks.length; i++) {
+            if (marks[i]) {
+                nodes[n++] = i - 1;
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * A parenthesized node set with predicates over the whole set, e.g.
+     * (//Button)[1], followed by an optional relative path.
+     */
+    private static class FilterExpr extends NodeSetExpr {
+        final Expr inner;
+        final Expr[] predicates;
+        final PathExpr path;
+
+        FilterExpr(Expr inner, Expr[] predicates, PathExpr path) {
+            this.inner = inner;
+            this.predicates = predicates;
+            this.path = path;
+        }
+
+        @Override
+        Object evaluate(Context context) {
+            int[] nodes = (int[]) inner.evaluate(context);
+            IntList candidates = new IntList();
+            candidates.addAll(nodes);
+            IntList filtered = new IntList();
+            for (Expr predicate : predicates) {
+                filter(context.snapshot, candidates, predicate, filtered);
+                IntList swap = candidates;
+                candidates = filtered;
+                filtered = swap;
+            }
+            if (path == null) {
+                return Arrays.copyOf(candidates.data, candidates.size);
+            }
+            boolean[] marks = new boolean[context.snapshot.size() + 1];
+            for (int k = 0; k < candidates.size; k++) {
+                Context c = new Context(context.snapshot, candidates.data[k], 1, 1);
+                for (int node : (int[]) path.evaluate(c)) {
+                    marks[node + 1] = true;
+                }
+            }
+            return toNodeSet(marks);
+        }
+    }
+
+    private static class Union extends NodeSetExpr {
+        final Expr left;
+        final Expr right;
+
+        Union(Expr left, Expr right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(Context context) {
+            boolean[] marks = new boolean[context.snapshot.size() + 1];
+            for (int node : (int[]) left.evaluate(context)) {
+                marks[node + 1] = true;
+            }
+            for (int node : (int[]) right.evaluate(context)) {
+                marks[node + 1] = true;
+            }
+            return toNodeSet(marks);
+        }
+    }
+
+    private static class IntList {
+        int[] data = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        void addAll(int[] values) {
+            for (int value : values) {
+                add(value);
+            }
+        }
+
+        void reverse(int from) {
+            for (int i = from, j = size - 1; i < j; i++, j--) {
+                int t = data[i];
+                data[i] = data[j];
+                data[j] = t;
+            }
+        }
+    }
+
+    /**
+     * Recursive descent parser for the selector grammar.
+     */
+    private static class Parser {
+        private final String text;
+        private int pos;
+        // Counts the position() and last() calls parsed, conservatively
+        // including those in nested predicates.
+        private int positionCalls;
+        // Set by parsePredicates if a predicate depends on positions.
+        private boolean positional;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Expr parse() throws MonkeyViewException {
+            Expr expr = parseOr();
+            skipSpace();
+            if (pos < text.length()) {
+                throw error("Unexpected '" + text.charAt(pos) + "'");
+            }
+            return expr;
+        }
+
+        private MonkeyViewException error(String message) {
+            return new MonkeyViewException(message + " at " + pos + " in selector: " + text);
+        }
+
+        private void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private boolean peek(String token) {
+            skipSpace();
+            return text.startsWith(token, pos);
+        }
+
+        private boolean accept(String token) {
+            if (peek(token)) {
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) throws MonkeyViewException {
+            if (!accept(token)) {
+                throw error("Expected '" + token + "'");
+            }
+        }
+
+        // Accept a keyword operator like "and", only as a whole word.
+        private boolean acceptWord(String word) {
+            if (peek(word) && !isNameChar(pos + word.length())) {
+                pos += word.length();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean isNameChar(int i) {
+            if (i >= text.length()) {
+                return false;
+            }
+            char c = text.charAt(i);
+            return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == '$';
+        }
+
+        private boolean isNameStart() {
+            skipSpace();
+            if (pos >= text.length()) {
+                return false;
+            }
+            char c = text.charAt(pos);
+            return Character.isLetter(c) || c == '_';
+        }
+
+        private String parseName() throws MonkeyViewException {
+            if (!isNameStart()) {
+                throw error("Expected a name");
+            }
+            int start = pos;
+            while (isNameChar(pos)) {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        private Expr parseOr() throws MonkeyViewException {
+            Expr expr = parseAnd();
+            while (acceptWord("or")) {
+                expr = new Or(expr, parseAnd());
+            }
+            return expr;
+        }
+
+        private Expr parseAnd() throws MonkeyViewException {
+            Expr expr = parseEquality();
+            while (acceptWord("and")) {
+                expr = new And(expr, parseEquality());
+            }
+            return expr;
+        }
+
+        private Expr parseEquality() throws MonkeyViewException {
+            Expr expr = parseUnion();
+            while (true) {
+                if (accept("!=")) {
+                    expr = new Equals(expr, parseUnion(), true);
+                } else if (accept("=")) {
+                    expr = new Equals(expr, parseUnion(), false);
+                } else {
+                    return expr;
+                }
+            }
+        }
+
+        private Expr parseUnion() throws MonkeyViewException {
+            Expr expr = parsePrimary();
+            while (accept("|")) {
+                Expr right = parsePrimary();
+                if (!(expr instanceof NodeSetExpr) || !(right instanceof NodeSetExpr)) {
+                    throw error("'|' needs node sets");
+                }
+                expr = new Union(expr, right);
+            }
+            return expr;
+        }
+
+        private Expr parsePrimary() throws MonkeyViewException {
+            skipSpace();
+            if (pos >= text.length()) {
+                throw error("Unexpected end");
+            }
+            char c = text.charAt(pos);
+            if (c == '\'' || c == '"') {
+                int end = text.indexOf(c, pos + 1);
+                if (end < 0) {
+                    throw error("Unterminated string");
+                }
+                String value = text.substring(pos + 1, end);
+                pos = end + 1;
+                return new Literal(value);
+            }
+            if (Character.isDigit(c)) {
+                int start = pos;
+                while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                    pos++;
+                }
+                try {
+                    return new Literal(Double.parseDouble(text.substring(start, pos)));
+                } catch (NumberFormatException e) {
+                    throw error("Bad number");
+                }
+            }
+            if (c == '@') {
+                pos++;
+                String name = parseName();
+                int attribute = Arrays.asList(ATTRIBUTES).indexOf(name);
+                if (attribute < 0) {
+                    throw error("Unknown attribute @" + name);
+                }
+                return new Attribute(attribute);
+            }
+            if (c == '(') {
+                pos++;
+                Expr inner = parseOr();
+                expect(")");
+                Expr[] predicates = parsePredicates();
+                PathExpr path = null;
+                if (peek("/")) {
+                    path = parseRelativePath(new ArrayList<Step>());
+                }
+                if (predicates.length == 0 && path == null) {
+                    return inner;
+                }
+                if (!(inner instanceof NodeSetExpr)) {
+                    throw error("Predicates need a node set");
+                }
+                return new FilterExpr(inner, predicates, path);
+            }
+            if (isNameStart()) {
+                int start = pos;
+                String name = parseName();
+                if (peek("(") && !"node".equals(name)) {
+                    return parseFunction(name);
+                }
+                pos = start;
+            }
+            return parsePath();
+        }
+
+        private Expr parseFunction(String name) throws MonkeyViewException {
+            expect("(");
+            List<Expr> args = new ArrayList<Expr>();
+            if (!accept(")")) {
+                do {
+                    args.add(parseOr());
+                } while (accept(","));
+                expect(")");
+            }
+            int arity;
+            if ("position".equals(name) || "last".equals(name) || "true".equals(name) || "false".equals(name)) {
+                arity = 0;
+            } else if ("not".equals(name) || "count".equals(name) || "string-length".equals(name)) {
+                arity = 1;
+            } else if ("contains".equals(name) || "starts-with".equals(name) || "ends-with".equals(name)
+                    || "matches".equals(name)) {
+                arity = 2;
+            } else {
+                throw error("Unknown function " + name + "()");
+            }
+            if ("position".equals(name) || "last".equals(name)) {
+                positionCalls++;
+            }
+            if (args.size() != arity) {
+                throw error(name + "() takes " + arity + " arguments");
+            }
+            Pattern pattern = null;
+            if ("matches".equals(name) && args.get(1) instanceof Literal) {
+                try {
+                    pattern = Pattern.compile(toText(((Literal) args.get(1)).value));
+                } catch (PatternSyntaxException e) {
+                    throw error("Bad regex: " + e.getDescription());
+                }
+            }
+            return new Function(name, args.toArray(new Expr[arity]), pattern);
+        }
+
+        private Expr[] parsePredicates() throws MonkeyViewException {
+            List<Expr> predicates = new ArrayList<Expr>();
+            while (accept("[")) {
+                int before = positionCalls;
+                Expr predicate = parseOr();
+                if (positionCalls != before || isNumber(predicate)) {
+                    positional = true;
+                }
+                predicates.add(predicate);
+                expect("]");
+            }
+            return predicates.toArray(new Expr[predicates.size()]);
+        }
+
+        // Whether the expression may evaluate to a number, a position.
+        private boolean isNumber(Expr expr) {
+            if (expr instanceof Literal) {
+                return ((Literal) expr).value instanceof Double;
+            } else if (expr instanceof Attribute) {
+                return ATTRIBUTES[((Attribute) expr).attribute].equals("index");
+            } else if (expr instanceof Function) {
+                String name = ((Function) expr).name;
+                return "count".equals(name) || "string-length".equals(name);
+            }
+            return false;
+        }
+
+        private PathExpr parsePath() throws MonkeyViewException {
+            List<Step> steps = new ArrayList<Step>();
+            if (peek("/")) {
+                return new PathExpr(true, parseSteps(steps));
+            }
+            steps.add(parseStep());
+            return parseRelativePath(steps);
+        }
+
+        private PathExpr parseRelativePath(List<Step> steps) throws MonkeyViewException {
+            return new PathExpr(false, parseSteps(steps));
+        }
+
+        private Step[] parseSteps(List<Step> steps) throws MonkeyViewException {
+            while (true) {
+                if (accept("//")) {
+                    Step step = parseStep();
+                    if (step.axis == CHILD && !step.positional) {
+                        // //X is /descendant-or-self::node()/child::X, which
+                        // selects the same as /descendant::X unless a
+                        // predicate counts positions among the children.
+                        steps.add(new Step(DESCENDANT, step.name, step.predicates, false));
+                    } else {
+                        steps.add(new Step(DESCENDANT_OR_SELF, null, new Expr[0], false));
+                        steps.add(step);
+                    }
+                } else if (accept("/")) {
+                    steps.add(parseStep());
+                } else {
+                    return steps.toArray(new Step[steps.size()]);
+                }
+            }
+        }
+
+        private Step parseStep() throws MonkeyViewException {
+            if (accept("..")) {
+                return new Step(PARENT, null, new Expr[0], false);
+            }
+            if (accept(".")) {
+                return new Step(SELF, null, new Expr[0], false);
+            }
+            int axis = CHILD;
+            String name;
+            if (accept("*")) {
+                name = "*";
+            } else {
+                name = parseName();
+                if (accept("::")) {
+                    axis = Arrays.asList(AXES).indexOf(name);
+                    if (axis < 0) {
+                        throw error("Unknown axis " + name);
+                    }
+                    name = accept("*") ? "*" : parseName();
+                }
+                if ("node".equals(name) && accept("(")) {
+                    expect(")");
+                    name = null;
+                }
+            }
+            boolean outer = positional;
+            positional = false;
+            Expr[] predicates = parsePredicates();
+            Step step = new Step(axis, name, predicates, positional);
+            positional = outer;
+            return step;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2009, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.app.IActivityManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.commands.monkey.MonkeySourceNetwork.CommandQueue;
+
+/**
+ * The state of one network client.
+ * <p>
+ * Everything a command changes on behalf of its client lives here rather than
+ * in static fields, so several clients can be connected at the same time
+ * without seeing each other's queued events, deferred returns, view change
+ * flags or subscriptions. Commands reach the session of their client through
+ * {@link CommandQueue#getSession()}.
+ * <p>
+ * Apart from the subscription, which is fed by other threads, a session is
+ * only used by the one worker executing the commands of its client.
+ * <p>
+ * A command waiting for something, e.g. waitfor for a node or sleep for its
+ * time to pass, doesn't hold on to the worker: it {@link #park parks} the
+ * session and lets the worker go. The session is woken up by a timer or by
+ * an accessibility event, and then executed again like a client that sent
+ * a request.
+ */
+public class MonkeySession {
+    private static final String TAG = "MonkeySession";
+
+    // How many notifications may wait for a slow client. Beyond this they are
+    // dropped, and the client is told how many it missed.
+    private static final int NOTIFICATION_LIMIT = 256;
+
+    // Wakes up parked sessions once their deadline passed.
+    private static final ScheduledThreadPoolExecutor sTimer = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "MonkeyTimer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        sTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    private final IActivityManager mAm;
+    private final MonkeyResponseWriter output;
+    private final CommandQueueImpl commandQueue = new CommandQueueImpl();
+
+    // The return of the last deferreturn, until its event occurred.
+    private MonkeySourceNetwork.DeferredReturn deferredReturn;
+
+    // The command waiting for its queued events to be injected, or null.
+    private MonkeySourceNetwork.Continuation continuation;
+
+    // The view change version this client has last been told about, see
+    // MonkeySourceNetworkViews.getChangeVersion(). Starts out behind, so the
+    // first getisviewchange reports a change.
+    private long seenChangeVersion = -1;
+
+    // Runs the writing of notifications, so the threads observing changes are
+    // never held up by a slow client.
+    private Executor notificationExecutor;
+    // The notifications this client subscribed to, or null.
+    private Subscription subscription;
+    // The node handles this client created.
+    private final MonkeyNodeHandles nodeHandles = new MonkeyNodeHandles();
+
+    // Runs the session again after it was woken up, set by the server.
+    private Runnable resumer;
+    private final Runnable waker = new Runnable() {
+        @Override
+        public void run() {
+            wake();
+        }
+    };
+    // Set by park, cleared by unpark once the session was woken up.
+    private volatile boolean parked;
+    // Set by wake, from any thread. Cleared by unpark.
+    private volatile boolean woken;
+    // What wakes the parked session up.
+    private ScheduledFuture<?> timeout;
+    private boolean wakeOnChange;
+
+    /**
+     * @param mAm    the activity manager.
+     * @param output where to write responses to.
+     */
+    MonkeySession(IActivityManager mAm, MonkeyResponseWriter output) {
+        this.mAm = mAm;
+        this.output = output;
+    }
+
+    public IActivityManager getActivityManager() {
+        return mAm;
+    }
+
+    public MonkeyNodeHandles getNodeHandles() {
+        return nodeHandles;
+    }
+
+    MonkeyResponseWriter getOutput() {
+        return output;
+    }
+
+    CommandQueueImpl getCommandQueue() {
+        return commandQueue;
+    }
+
+    MonkeySourceNetwork.DeferredReturn getDeferredReturn() {
+        return deferredReturn;
+    }
+
+    /**
+     * Replace the deferred return. One still pending is cancelled, so its
+     * listener doesn't stay registered.
+     */
+    void setDeferredReturn(MonkeySourceNetwork.DeferredReturn deferredReturn) {
+        if (this.deferredReturn != null && this.deferredReturn != deferredReturn) {
+            this.deferredReturn.cancel();
+        }
+        this.deferredReturn = deferredReturn;
+    }
+
+    MonkeySourceNetwork.Continuation getContinuation() {
+        return continuation;
+    }
+
+    /**
+     * Make the command being executed go on once the events it queued have
+     * been injected, see {@link MonkeySourceNetwork.Continuation}.
+     */
+    void setContinuation(MonkeySourceNetwork.Continuation continuation) {
+        this.continuation = continuation;
+    }
+
+    /**
+     * Set the callback that has the session executed again once it was woken
+     * up. Called by the server, may be run on any thread.
+     */
+    void setResumer(Runnable resumer) {
+        this.resumer = resumer;
+    }
+
+    /**
+     * Stop executing the commands of this client until {@link #wake()} is
+     * called, the deadline passes or, if asked for, an accessibility event
+     * arrives. getNextEvent returns null meanwhile, and requests read later
+     * wait their turn. Whatever is waited for is checked again once woken up,
+     * which may happen early.
+     *
+     * @param deadline      the uptime to wake up at, at the latest.
+     * @param changeVersion wake up on the first accessibility event after
+     *                      this version, see
+     *                      MonkeySourceNetworkViews.getChangeVersion(), or -1
+     *                      not to.
+     */
+    void park(long deadline, long changeVersion) {
+        parked = true;
+        timeout = sTimer.schedule(waker, Math.max(deadline - SystemClock.uptimeMillis(), 0),
+                TimeUnit.MILLISECONDS);
+        if (changeVersion >= 0) {
+            wakeOnChange = true;
+            MonkeySourceNetworkViews.addChangeListener(waker);
+            // An event may have arrived before listening to them.
+            if (MonkeySourceNetworkViews.getChangeVersion() != changeVersion) {
+                wake();
+            }
+        }
+    }
+
+    /**
+     * Leave the parked state once woken up. Whatever the session waited for
+     * has to be checked after calling this, so a wake up arriving meanwhile
+     * isn't lost.
+     *
+     * @return false if the session is parked and hasn't been woken up yet.
+     */
+    boolean unpark() {
+        if (parked && !woken) {
+            return false;
+        }
+        woken = false;
+        if (parked) {
+            parked = false;
+            timeout.cancel(false);
+            timeout = null;
+            if (wakeOnChange) {
+                wakeOnChange = false;
+                MonkeySourceNetworkViews.removeChangeListener(waker);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true while the session is parked and not woken up yet. May be
+     *         called from any thread.
+     */
+    boolean isParked() {
+        return parked && !woken;
+    }
+
+    /**
+     * @return true if the session is parked, woken up or not. May be called
+     *         from any thread.
+     */
+    boolean isWaiting() {
+        return parked;
+    }
+
+    /**
+     * Have the session executed again, e.g. because what it waits for
+     * happened. May be called from any thread, and also when the session
+     * isn't parked.
+     */
+    public void wake() {
+        woken = true;
+        Runnable resumer = this.resumer;
+        if (resumer != null) {
+            resumer.run();
+        }
+    }
+
+    /**
+     * Tell whether the views changed since the last time this client asked.
+     * Other clients asking don't affect the answer.
+     *
+     * @return true if an accessibility event arrived since the last call.
+     */
+    public boolean consumeViewChange() {
+        long version = MonkeySourceNetworkViews.getChangeVersion();
+        boolean changed = version != seenChangeVersion;
+        seenChangeVersion = version;
+        return changed;
+    }
+
+    /**
+     * Set the executor notifications are written to the client on.
+     */
+    void setNotificationExecutor(Executor notificationExecutor) {
+        this.notificationExecutor = notificationExecutor;
+    }
+
+    /**
+     * Start sending notifications of the given types, or change the types and
+     * request id of the current subscription.
+     *
+     * @param types     the MonkeyNotifier.TYPE_* combination.
+     * @param requestId the id of the subscribe request.
+     * @return false if this session can't deliver notifications.
+     */
+    boolean subscribe(int types, int requestId) {
+        if (notificationExecutor == null) {
+            return false;
+        }
+        if (subscription != null) {
+            subscription.requestId = requestId;
+            subscription.types = types;
+            // A failed write cancels the subscription from the writing
+            // thread, possibly while it was being changed here.
+            if (subscription.cancelled) {
+                subscription = null;
+            }
+        }
+        if (subscription == null) {
+            subscription = new Subscription(types, requestId);
+            MonkeyNotifier.addListener(subscription);
+        }
+        return true;
+    }
+
+    /**
+     * Stop sending notifications, including those already queued.
+     */
+    void unsubscribe() {
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+        }
+    }
+
+    /**
+     * Drop all state once the client is gone.
+     */
+    void close() {
+        unsubscribe();
+        nodeHandles.close();
+        continuation = null;
+        parked = false;
+        if (timeout != null) {
+            timeout.cancel(false);
+            timeout = null;
+        }
+        if (wakeOnChange) {
+            wakeOnChange = false;
+            MonkeySourceNetworkViews.removeChangeListener(waker);
+        }
+        if (deferredReturn != null) {
+            deferredReturn.cancel();
+            deferredReturn = null;
+        }
+        while (commandQueue.getNextQueuedEvent() != null) {
+            // drop events that will never be injected
+        }
+    }
+
+    // Queue of Events to be processed. This allows commands to push
+    // multiple events into the queue to be processed.
+    class CommandQueueImpl implements CommandQueue {
+        private final Queue<MonkeyEvent> queuedEvents = new ArrayDeque<MonkeyEvent>();
+
+        public void enqueueEvent(MonkeyEvent e) {
+            queuedEvents.offer(e);
+        }
+
+        public MonkeySession getSession() {
+            return MonkeySession.this;
+        }
+
+        /**
+         * Get the next queued event to excecute.
+         *
+         * @return the next event, or null if there aren't any more.
+         */
+        public MonkeyEvent getNextQueuedEvent() {
+            return queuedEvents.poll();
+        }
+
+        /**
+         * @return true if there are queued events left to execute.
+         */
+        public boolean hasQueuedEvents() {
+            return !queuedEvents.isEmpty();
+        }
+    };
+
+    /**
+     * The notifications a client subscribed to. Notifications are queued by the
+     * thread that observed the change, and written by the notification
+     * executor, one task per subscription at a time.
+     */
+    private class Subscription implements MonkeyNotifier.Listener, Runnable {
+        private final ConcurrentLinkedQueue<String> notifications = new ConcurrentLinkedQueue<String>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger dropped = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile int types;
+        private volatile int requestId;
+        // Set once the listener was removed, never cleared.
+        private volatile boolean cancelled;
+
+        Subscription(int types, int requestId) {
+            this.types = types;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public int getTypes() {
+            return types;
+        }
+
+        @Override
+        public void onNotification(int type, String packageName, String notification) {
+            if (queued.get() >= NOTIFICATION_LIMIT) {
+                dropped.incrementAndGet();
+            } else {
+                queued.incrementAndGet();
+                notifications.offer(notification);
+            }
+            if (draining.compareAndSet(false, true)) {
+                try {
+                    notificationExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // The server is shutting down.
+                    cancel();
+                }
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            types = 0;
+            MonkeyNotifier.removeListener(this);
+        }
+
+        @Override
+        public void run() {
+            do {
+                try {
+                    String notification;
+                    while ((notification = notifications.poll()) != null) {
+                        queued.decrementAndGet();
+                        if (types != 0) {
+                            output.writeEvent(requestId, notification);
+                        }
+                    }
+                    int missed = dropped.getAndSet(0);
+                    if (missed > 0 && types != 0) {
+                        output.writeEvent(requestId, "overflow " + SystemClock.uptimeMillis() + " " + missed);
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, "Notification failed: " + e.getMessage());
+                    cancel();
+                }
+                draining.set(false);
+                // A notification may have been queued after the loop ran dry
+                // but before draining was cleared.
+            } while (!notifications.isEmpty() && draining.compareAndSet(false, true));
+        }
+    }
+}
@@ -15,21 +15,22 @@
  */
 package com.android.commands.monkey;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.Socket;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Queue;
-import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
 
 import android.app.ActivityManager.RunningTaskInfo;
 import android.app.IActivityManager;
@@ -44,6 +45,7 @@ import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 import android.view.KeyCharacterMap;
@@ -57,7 +59,6 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
     private static final String TAG = "MonkeyStub";
     /* The version of the monkey shell protocol */
     public static final int MONKEY_SHELL_VERSION = 1;
-    private static DeferredReturn deferredReturn;
 
     /**
      * ReturnValue from the MonkeyCommand that indicates whether the command was
@@ -65,26 +66,110 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
      */
     public static class MonkeyCommandReturn {
         private final boolean success;
-        private final String message;
+        private String message;
+        private final byte[] data;
+        private final int dataLength;
+        // The message, UTF-8 encoded, if it was written into a buffer.
+        private final byte[] encoded;
+        private final int encodedLength;
 
         public MonkeyCommandReturn(boolean success) {
-            this.success = success;
-            this.message = null;
+            this(success, null);
         }
 
         public MonkeyCommandReturn(boolean success, String message) {
             this.success = success;
             this.message = message;
+            this.data = null;
+            this.dataLength = 0;
+            this.encoded = null;
+            this.encodedLength = 0;
+        }
+
+        /**
+         * A successful return carrying binary data, which is sent to the client
+         * as is instead of as a message.
+         *
+         * @param data       the buffer holding the data. It is not copied, so it
+         *                   must stay untouched until the return was sent.
+         * @param dataLength the number of bytes of data to send.
+         */
+        public MonkeyCommandReturn(byte[] data, int dataLength) {
+            this.success = true;
+            this.message = null;
+            this.data = data;
+            this.dataLength = dataLength;
+            this.encoded = null;
+            this.encodedLength = 0;
+        }
+
+        /**
+         * A return whose message has already been encoded, see
+         * {@link MonkeyResponseBuffer}. It is sent like any other message, but
+         * without turning it into a String first.
+         *
+         * @param encoded       the buffer holding the UTF-8 message. It is not
+         *                      copied, so it must stay untouched until the
+         *                      return was sent.
+         * @param encodedLength the number of bytes of the message.
+         */
+        public MonkeyCommandReturn(boolean success, byte[] encoded, int encodedLength) {
+            this.success = success;
+            this.message = null;
+            this.data = null;
+            this.dataLength = 0;
+            this.encoded = encoded;
+            this.encodedLength = encodedLength;
+        }
+
+        /**
+         * @return this return with its buffers copied, for keeping it beyond
+         *         the next command.
+         */
+        MonkeyCommandReturn detach() {
+            if (data != null) {
+                return new MonkeyCommandReturn(Arrays.copyOf(data, dataLength), dataLength);
+            } else if (encoded != null) {
+                return new MonkeyCommandReturn(success, Arrays.copyOf(encoded, encodedLength), encodedLength);
+            }
+            return this;
         }
 
         boolean hasMessage() {
-            return message != null;
+            return message != null || encoded != null;
         }
 
         String getMessage() {
+            if (message == null && encoded != null) {
+                message = new String(encoded, 0, encodedLength, StandardCharsets.UTF_8);
+            }
             return message;
         }
 
+        boolean hasEncodedMessage() {
+            return encoded != null;
+        }
+
+        byte[] getEncodedMessage() {
+            return encoded;
+        }
+
+        int getEncodedLength() {
+            return encodedLength;
+        }
+
+        boolean hasData() {
+            return data != null;
+        }
+
+        byte[] getData() {
+            return data;
+        }
+
+        int getDataLength() {
+            return dataLength;
+        }
+
         boolean wasSuccessful() {
             return success;
         }
@@ -139,31 +224,27 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
         // touch up 140 140
         public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
             if (command.size() == 4) {
-                String actionName = command.get(1);
-                int x = 0;
-                int y = 0;
-                try {
-                    x = Integer.parseInt(command.get(2));
-                    y = Integer.parseInt(command.get(3));
-                } catch (NumberFormatException e) {
+                if (!MonkeyCommandLine.isInt(command, 2) || !MonkeyCommandLine.isInt(command, 3)) {
                     // Ok, it wasn't a number
-                    Log.e(TAG, "Got something that wasn't a number", e);
+                    Log.e(TAG, "Got something that wasn't a number");
                     return EARG;
                 }
+                int x = MonkeyCommandLine.getInt(command, 2);
+                int y = MonkeyCommandLine.getInt(command, 3);
 
                 // figure out the action
                 int action = -1;
                 long downTime = 0;
-                if ("down".equals(actionName)) {
+                if (MonkeyCommandLine.equalsAt(command, 1, "down")) {
                     action = MotionEvent.ACTION_DOWN;
                     downTime = SystemClock.uptimeMillis();
-                } else if ("up".equals(actionName)) {
+                } else if (MonkeyCommandLine.equalsAt(command, 1, "up")) {
                     action = MotionEvent.ACTION_UP;
-                } else if ("move".equals(actionName)) {
+                } else if (MonkeyCommandLine.equalsAt(command, 1, "move")) {
                     action = MotionEvent.ACTION_MOVE;
                 }
                 if (action == -1) {
-                    Log.e(TAG, "Got a bad action: " + actionName);
+                    Log.e(TAG, "Got a bad action: " + command.get(1));
                     return EARG;
                 }
 
@@ -187,16 +268,13 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
         // trackball -1 0 -- move left
         public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
             if (command.size() == 3) {
-                int dx = 0;
-                int dy = 0;
-                try {
-                    dx = Integer.parseInt(command.get(1));
-                    dy = Integer.parseInt(command.get(2));
-                } catch (NumberFormatException e) {
+                if (!MonkeyCommandLine.isInt(command, 1) || !MonkeyCommandLine.isInt(command, 2)) {
                     // Ok, it wasn't a number
-                    Log.e(TAG, "Got something that wasn't a number", e);
+                    Log.e(TAG, "Got something that wasn't a number");
                     return EARG;
                 }
+                int dx = MonkeyCommandLine.getInt(command, 1);
+                int dy = MonkeyCommandLine.getInt(command, 2);
                 queue.enqueueEvent(new MonkeyTrackballEvent(MotionEvent.ACTION_MOVE).addPointer(0, dx, dy));
                 return OK;
 
@@ -214,17 +292,16 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
         // key up 82
         public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
             if (command.size() == 3) {
-                int keyCode = getKeyCode(command.get(2));
+                int keyCode = getKeyCode(command, 2);
                 if (keyCode < 0) {
                     // Ok, you gave us something bad.
                     Log.e(TAG, "Can't find keyname: " + command.get(2));
                     return EARG;
                 }
-                Log.d(TAG, "keycode: " + keyCode);
                 int action = -1;
-                if ("down".equals(command.get(1))) {
+                if (MonkeyCommandLine.equalsAt(command, 1, "down")) {
                     action = KeyEvent.ACTION_DOWN;
-                } else if ("up".equals(command.get(1))) {
+                } else if (MonkeyCommandLine.equalsAt(command, 1, "up")) {
                     action = KeyEvent.ACTION_UP;
                 }
                 if (action == -1) {
@@ -241,16 +318,18 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
     /**
      * Get an integer keycode value from a given keyname.
      *
-     * @param keyName the key name to get the code for
+     * @param command the command line.
+     * @param index   the index of the key name to get the code for
      * @return the integer keycode value, or -1 on error.
      */
-    private static int getKeyCode(String keyName) {
+    private static int getKeyCode(List<String> command, int index) {
         int keyCode = -1;
-        try {
-            keyCode = Integer.parseInt(keyName);
-        } catch (NumberFormatException e) {
+        if (MonkeyCommandLine.isInt(command, index)) {
+            keyCode = MonkeyCommandLine.getInt(command, index);
+        } else {
             // Ok, it wasn't a number, see if we have a
             // keycode name for it
+            String keyName = command.get(index);
             keyCode = KeyEvent.keyCodeFromString(keyName);
             if (keyCode == KeyEvent.KEYCODE_UNKNOWN) {
                 // OK, one last ditch effort to find a match.
@@ -275,14 +354,11 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
         // sleep 2000
         public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
             if (command.size() == 2) {
-                int sleep = -1;
-                String sleepStr = command.get(1);
-                try {
-                    sleep = Integer.parseInt(sleepStr);
-                } catch (NumberFormatException e) {
-                    Log.e(TAG, "Not a number: " + sleepStr, e);
+                if (!MonkeyCommandLine.isInt(command, 1)) {
+                    Log.e(TAG, "Not a number: " + command.get(1));
                     return EARG;
                 }
+                int sleep = MonkeyCommandLine.getInt(command, 1);
                 queue.enqueueEvent(new MonkeyThrottleEvent(sleep));
                 return OK;
             }
@@ -428,15 +504,16 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
     private static class GetTopActivityCommand implements MonkeyCommand {
         public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
             String className = "";
+            IActivityManager am = queue.getSession().getActivityManager();
             List<RunningTaskInfo> tasks = new ArrayList<>();
             try {
-                tasks = mAm.getTasks(1);
+                tasks = am.getTasks(1);
             } catch (Throwable e) {
                 try {
-                    tasks = mAm.getTasks(1, 0);
+                    tasks = am.getTasks(1, 0);
                 } catch (Throwable e1) {
                     try {
-                        tasks = mAm.getTasks(1, 0, null);
+                        tasks = am.getTasks(1, 0, null);
                     } catch (RemoteException e2) {
                         e2.printStackTrace();
                     }
@@ -523,16 +600,13 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
         // tap x y
         public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
             if (command.size() == 3) {
-                int x = 0;
-                int y = 0;
-                try {
-                    x = Integer.parseInt(command.get(1));
-                    y = Integer.parseInt(command.get(2));
-                } catch (NumberFormatException e) {
+                if (!MonkeyCommandLine.isInt(command, 1) || !MonkeyCommandLine.isInt(command, 2)) {
                     // Ok, it wasn't a number
-                    Log.e(TAG, "Got something that wasn't a number", e);
+                    Log.e(TAG, "Got something that wasn't a number");
                     return EARG;
                 }
+                int x = MonkeyCommandLine.getInt(command, 1);
+                int y = MonkeyCommandLine.getInt(command, 2);
                 long downTime = SystemClock.uptimeMillis();
                 queue.enqueueEvent(
                         new MonkeyTouchEvent(MotionEvent.ACTION_DOWN).addPointer(0, x, y).setDownTime(downTime));
@@ -552,7 +626,7 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
         // press keycode
         public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
             if (command.size() == 2) {
-                int keyCode = getKeyCode(command.get(1));
+                int keyCode = getKeyCode(command, 1);
                 if (keyCode < 0) {
                     // Ok, you gave us something bad.
                     Log.e(TAG, "Can't find keyname: " + command.get(1));
@@ -572,7 +646,7 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
      * Command to defer the return of another command until the given event occurs.
      * deferreturn takes three arguments. It takes an event to wait for (e.g.
      * waiting for the device to display a different activity would the
-     * "screenchange" event), a timeout, which is the number of microseconds to wait
+     * "screenchange" event), a timeout, which is the number of milliseconds to wait
      * for the event to occur, and it takes a command. The command can be any other
      * Monkey command that can be issued over the shell (e.g. press KEYCODE_HOME).
      * deferreturn will then run this command, return an OK, wait for the event to
@@ -580,6 +654,17 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
      * when the timeout is reached (whichever occurs first). Note that there is no
      * difference between an event occurring and the timeout being reached; the
      * client will have to verify that the change actually occured.
+     * <p>
+     * The events are:
+     *
+     * <pre>
+     * screenchange   a window changed its state
+     * contentchange  the content of a window changed
+     * activity       an activity is being started or resumed
+     * packagechange  a window or activity of another package came up
+     * notification   a notification or toast was shown
+     * idle           no accessibility event arrived for a while
+     * </pre>
      *
      * Example: deferreturn screenchange 1000 press KEYCODE_HOME This command will
      * press the home key on the device and then wait for the screen to change for
@@ -590,21 +675,38 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
     private static class DeferReturnCommand implements MonkeyCommand {
         // deferreturn [event] [timeout (ms)] [command]
         // deferreturn screenchange 100 tap 10 10
+        // deferreturn packagechange 3000 press KEYCODE_HOME
+        // deferreturn idle 2000 tap 10 10
         public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
             if (command.size() > 3) {
-                String event = command.get(1);
-                int eventId;
-                if (event.equals("screenchange")) {
-                    eventId = DeferredReturn.ON_WINDOW_STATE_CHANGE;
-                } else {
+                int eventId = DeferredReturn.parseEvent(command.get(1));
+                if (eventId < 0) {
+                    return EARG;
+                }
+                long timeout;
+                try {
+                    timeout = Long.parseLong(command.get(2));
+                } catch (NumberFormatException e) {
                     return EARG;
                 }
-                long timeout = Long.parseLong(command.get(2));
                 MonkeyCommand deferredCommand = COMMAND_MAP.get(command.get(3));
-                if (deferredCommand != null) {
+                // A session has one deferred return at a time.
+                if (deferredCommand != null && !(deferredCommand instanceof DeferReturnCommand)) {
+                    // Start listening before the command runs, some commands
+                    // act on the views right away.
+                    DeferredReturn deferredReturn = new DeferredReturn(eventId, timeout, queue.getSession());
                     List<String> parts = command.subList(3, command.size());
-                    MonkeyCommandReturn ret = deferredCommand.translateCommand(parts, queue);
-                    deferredReturn = new DeferredReturn(eventId, ret, timeout);
+                    MonkeyCommandReturn ret;
+                    try {
+                        ret = deferredCommand.translateCommand(parts, queue);
+                    } catch (RuntimeException e) {
+                        deferredReturn.cancel();
+                        throw e;
+                    }
+                    // Other commands may run on this thread before the return is
+                    // sent, don't let them overwrite its buffer.
+                    deferredReturn.setReturn(ret.detach());
+                    queue.getSession().setDeferredReturn(deferredReturn);
                     return OK;
                 }
             }
@@ -639,6 +741,9 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
 
     // This maps from command names to command implementations.
     private static final Map<String, MonkeyCommand> COMMAND_MAP = new HashMap<String, MonkeyCommand>();
+    // COMMAND_MAP flattened, for looking up commands without creating Strings.
+    private static final String[] COMMAND_NAMES;
+    private static final MonkeyCommand[] COMMANDS;
 
     static {
         // Add in all the commands we support
@@ -656,22 +761,51 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
         COMMAND_MAP.put("listvar", new MonkeySourceNetworkVars.ListVarCommand());
         COMMAND_MAP.put("getvar", new MonkeySourceNetworkVars.GetVarCommand());
         COMMAND_MAP.put("queryview", new MonkeySourceNetworkViews.QueryViewCommand());
+        COMMAND_MAP.put("handle", new MonkeySourceNetworkViews.HandleCommand());
         COMMAND_MAP.put("getrootview", new MonkeySourceNetworkViews.GetRootViewCommand());
         COMMAND_MAP.put("getisviewchange", new MonkeySourceNetworkViews.GetIsChangeCommand());
         COMMAND_MAP.put("getviewswithtext", new MonkeySourceNetworkViews.GetViewsWithTextCommand());
+        COMMAND_MAP.put("find", new MonkeySourceNetworkViews.FindCommand());
+        COMMAND_MAP.put("waitfor", new MonkeySourceNetworkViews.WaitForCommand());
+        COMMAND_MAP.put("waitidle", new MonkeySourceNetworkViews.WaitIdleCommand());
+        COMMAND_MAP.put("nodeat", new MonkeySourceNetworkViews.NodeAtCommand());
+        COMMAND_MAP.put("nodesin", new MonkeySourceNetworkViews.NodesInCommand());
+        COMMAND_MAP.put("clickon", new MonkeySourceNetworkViews.ClickOnCommand(false));
+        COMMAND_MAP.put("longclickon", new MonkeySourceNetworkViews.ClickOnCommand(true));
+        COMMAND_MAP.put("settexton", new MonkeySourceNetworkViews.SetTextOnCommand());
+        COMMAND_MAP.put("scrollto", new MonkeySourceNetworkViews.ScrollToCommand());
         COMMAND_MAP.put("deferreturn", new DeferReturnCommand());
         COMMAND_MAP.put("takescreenshot", new MonkeySourceNetworkViews.TakeScreenshot());
         COMMAND_MAP.put("echo", new EchoCommand());
         COMMAND_MAP.put("gettopactivity", new GetTopActivityCommand());
         COMMAND_MAP.put("play", new PlayAudioCommand());
+
+        COMMAND_NAMES = COMMAND_MAP.keySet().toArray(new String[COMMAND_MAP.size()]);
+        COMMANDS = new MonkeyCommand[COMMAND_NAMES.length];
+        for (int i = 0; i < COMMAND_NAMES.length; i++) {
+            COMMANDS[i] = COMMAND_MAP.get(COMMAND_NAMES[i]);
+        }
     }
 
     // QUIT command
     private static final String QUIT = "quit";
 
-    // command response strings
-    private static final String OK_STR = "OK";
-    private static final String ERROR_STR = "ERROR";
+    // PROTOCOL command, switches the response format of this connection
+    // protocol [line|framed]
+    private static final String PROTOCOL = "protocol";
+    private static final String PROTOCOL_LINE = "line";
+    private static final String PROTOCOL_FRAMED = "framed";
+
+    // BATCH command, executes several commands and answers once for all
+    // batch [command] ; [command] ; ...
+    private static final String BATCH = "batch";
+    private static final String BATCH_SEPARATOR = ";";
+
+    // SUBSCRIBE command, streams notifications to this connection
+    // subscribe [window|content|activity|notification|all] ...
+    // unsubscribe
+    private static final String SUBSCRIBE = "subscribe";
+    private static final String UNSUBSCRIBE = "unsubscribe";
 
     public static interface CommandQueue {
         /**
@@ -683,237 +817,823 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
          * @param e the event to be enqueued.
          */
         public void enqueueEvent(MonkeyEvent e);
-    };
-
-    // Queue of Events to be processed. This allows commands to push
-    // multiple events into the queue to be processed.
-    private static class CommandQueueImpl implements CommandQueue {
-        private final Queue<MonkeyEvent> queuedEvents = new LinkedList<MonkeyEvent>();
-
-        public void enqueueEvent(MonkeyEvent e) {
-            queuedEvents.offer(e);
-        }
 
         /**
-         * Get the next queued event to excecute.
-         *
-         * @return the next event, or null if there aren't any more.
+         * @return the session of the client the command is executed for.
          */
-        public MonkeyEvent getNextQueuedEvent() {
-            return queuedEvents.poll();
-        }
+        public MonkeySession getSession();
     };
 
+    /**
+     * The rest of a command that has to see what its queued events did before
+     * it can answer, e.g. scrollto. A command sets it with
+     * {@link MonkeySession#setContinuation}, and then isn't answered with what
+     * translateCommand returned; getNextEvent resumes the continuation once all
+     * queued events have been injected, and answers with what it returns.
+     */
+    public static interface Continuation {
+        /**
+         * @param queue the queue to put more events on.
+         * @return the return value of the command, or null after queueing
+         *         more events, to be resumed again once they were injected.
+         */
+        public MonkeyCommandReturn resume(CommandQueue queue);
+    }
+
     // A holder class for a deferred return value. This allows us to defer returning
     // the success of
     // a call until a given event has occurred.
-    private static class DeferredReturn {
+    static class DeferredReturn implements MonkeyNotifier.Listener {
         public static final int ON_WINDOW_STATE_CHANGE = 1;
+        public static final int ON_CONTENT_CHANGE = 2;
+        public static final int ON_ACTIVITY = 3;
+        public static final int ON_PACKAGE_CHANGE = 4;
+        public static final int ON_NOTIFICATION = 5;
+        public static final int ON_IDLE = 6;
+
+        // How long no accessibility event may arrive for the screen to count
+        // as idle.
+        private static final long IDLE_MILLIS = 500;
 
-        private int event;
+        private final int event;
         private MonkeyCommandReturn deferredReturn;
-        private long timeout;
+        private final long timeout;
+        // Woken up when the event occurs.
+        private final MonkeySession session;
+        // Counted from the first poll, 0 before it.
+        private long deadline;
+        private long nextCheck;
+        private int requestId;
+        // The package of the active window when the command ran, for
+        // ON_PACKAGE_CHANGE. If there was none, the first package reported
+        // takes its place. Guarded by this.
+        private String packageName;
+        // Guarded by this.
+        private boolean occurred;
 
-        public DeferredReturn(int event, MonkeyCommandReturn deferredReturn, long timeout) {
+        /**
+         * Start listening for the event.
+         *
+         * @param event   one of the ON_* constants.
+         * @param timeout the longest time to wait for the event in
+         *                milliseconds, counted from the first poll().
+         * @param session the session to wake up when the event occurs.
+         */
+        public DeferredReturn(int event, long timeout, MonkeySession session) {
             this.event = event;
-            this.deferredReturn = deferredReturn;
             this.timeout = timeout;
+            this.session = session;
+            this.packageName = event == ON_PACKAGE_CHANGE ? MonkeySourceNetworkViews.getActivePackage() : null;
+            if (event != ON_IDLE) {
+                MonkeyNotifier.addListener(this);
+            }
         }
 
         /**
-         * Wait until the given event has occurred before returning the value.
-         *
-         * @return The MonkeyCommandReturn from the command that was deferred.
+         * @return the ON_* constant for the name of an event, or -1 if there
+         *         is none by that name.
+         */
+        public static int parseEvent(String name) {
+            if ("screenchange".equals(name)) {
+                return ON_WINDOW_STATE_CHANGE;
+            } else if ("contentchange".equals(name)) {
+                return ON_CONTENT_CHANGE;
+            } else if ("activity".equals(name)) {
+                return ON_ACTIVITY;
+            } else if ("packagechange".equals(name)) {
+                return ON_PACKAGE_CHANGE;
+            } else if ("notification".equals(name)) {
+                return ON_NOTIFICATION;
+            } else if ("idle".equals(name)) {
+                return ON_IDLE;
+            }
+            return -1;
+        }
+
+        public void setReturn(MonkeyCommandReturn deferredReturn) {
+            this.deferredReturn = deferredReturn;
+        }
+
+        /**
+         * @return the id of the request whose return was deferred.
          */
-        public MonkeyCommandReturn waitForEvent() {
+        public int getRequestId() {
+            return requestId;
+        }
+
+        public void setRequestId(int requestId) {
+            this.requestId = requestId;
+        }
+
+        @Override
+        public int getTypes() {
             switch (event) {
                 case ON_WINDOW_STATE_CHANGE:
-                    try {
-                        synchronized (MonkeySourceNetworkViews.class) {
-                            MonkeySourceNetworkViews.class.wait(timeout);
-                        }
-                    } catch (InterruptedException e) {
-                        Log.d(TAG, "Deferral interrupted: " + e.getMessage());
-                    }
+                    return MonkeyNotifier.TYPE_WINDOW;
+                case ON_CONTENT_CHANGE:
+                    return MonkeyNotifier.TYPE_CONTENT;
+                case ON_ACTIVITY:
+                    return MonkeyNotifier.TYPE_ACTIVITY;
+                case ON_PACKAGE_CHANGE:
+                    return MonkeyNotifier.TYPE_WINDOW | MonkeyNotifier.TYPE_ACTIVITY;
+                case ON_NOTIFICATION:
+                    return MonkeyNotifier.TYPE_NOTIFICATION;
+                default:
+                    return 0;
+            }
+        }
+
+        @Override
+        public synchronized void onNotification(int type, String packageName, String notification) {
+            if (event == ON_PACKAGE_CHANGE) {
+                // A change without a package tells nothing.
+                if (packageName == null) {
+                    return;
+                } else if (this.packageName == null) {
+                    this.packageName = packageName;
+                    return;
+                } else if (TextUtils.equals(packageName, this.packageName)) {
+                    return;
+                }
+            }
+            occurred = true;
+            session.wake();
+        }
+
+        /**
+         * Stop listening for the event.
+         */
+        public void cancel() {
+            MonkeyNotifier.removeListener(this);
+        }
+
+        /**
+         * Tell whether the given event has occurred, or the timeout ran out,
+         * and the value can be returned. Never blocks; the session is woken up
+         * when the event occurs, and has to poll again by getNextCheck() at
+         * the latest.
+         *
+         * @param now the current uptime.
+         * @return The MonkeyCommandReturn from the command that was deferred,
+         *         or null if it isn't time to return it yet.
+         */
+        public MonkeyCommandReturn poll(long now) {
+            if (deadline == 0) {
+                deadline = now + timeout;
             }
+            boolean done;
+            if (event == ON_IDLE) {
+                long idle = MonkeySourceNetworkViews.getIdleTime(deadline - timeout, IDLE_MILLIS);
+                done = now >= idle;
+                nextCheck = Math.min(idle, deadline);
+            } else {
+                synchronized (this) {
+                    done = occurred;
+                }
+                nextCheck = deadline;
+            }
+            if (!done && now < deadline) {
+                return null;
+            }
+            cancel();
             return deferredReturn;
         }
+
+        /**
+         * @return the uptime to poll again at, after poll() returned null.
+         */
+        public long getNextCheck() {
+            return nextCheck;
+        }
     };
 
-    private final CommandQueueImpl commandQueue = new CommandQueueImpl();
+    /**
+     * A request line that has been read and parsed off the connection, and is
+     * waiting for its turn to be executed. Instances are recycled once they
+     * have been executed, together with the buffers of their command line.
+     */
+    private static class PendingCommand {
+        // a command from COMMAND_MAP, or an unknown one if command is null
+        static final int KIND_COMMAND = 0;
+        // quit
+        static final int KIND_QUIT = 1;
+        // protocol [line|framed]
+        static final int KIND_PROTOCOL = 2;
+        // a line that couldn't be parsed, the reason is in error
+        static final int KIND_MALFORMED = 3;
+        // the client closed the connection
+        static final int KIND_END = 4;
+        // batch [command] ; [command] ; ...
+        static final int KIND_BATCH = 5;
+        // subscribe [type] ... or unsubscribe
+        static final int KIND_SUBSCRIBE = 6;
+
+        final MonkeyCommandLine parts = new MonkeyCommandLine();
+        int kind;
+        int requestId;
+        MonkeyCommand command;
+        String error;
+
+        PendingCommand set(int kind, int requestId, MonkeyCommand command, String error) {
+            this.kind = kind;
+            this.requestId = requestId;
+            this.command = command;
+            this.error = error;
+            return this;
+        }
+    }
 
-    private BufferedReader input;
-    private PrintWriter output;
-    private static IActivityManager mAm;
+    // How many parsed requests may wait behind the one being executed. Once
+    // this many are waiting the connection stops reading, and the client is
+    // held back by TCP flow control until half of them have been executed.
+    private static final int PENDING_COMMAND_LIMIT = 1024;
 
-    MonkeySourceNetwork(IActivityManager mAm, Socket socket) throws IOException {
-        MonkeySourceNetwork.mAm = mAm;
-        input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        // auto-flush
-        output = new PrintWriter(socket.getOutputStream(), true);
+    // The first line a client has to send.
+    private static final String HELLO = "!@#$%^&*()";
 
-        String hello = input.readLine();
-        if (!"!@#$%^&*()".equals(hello.trim())) {
-            throw new IllegalStateException("wrong hello msg!");
-        }
+    private static final PendingCommand END = new PendingCommand().set(PendingCommand.KIND_END, 0, null, null);
+
+    private final MonkeySession session;
+    private final MonkeySession.CommandQueueImpl commandQueue;
+
+    // Bounded by PENDING_COMMAND_LIMIT, plus room for END.
+    private final BlockingQueue<PendingCommand> pendingCommands = new ArrayBlockingQueue<PendingCommand>(
+            PENDING_COMMAND_LIMIT + 1);
+    // Executed requests, ready to be filled with the next line read.
+    private final BlockingQueue<PendingCommand> freeCommands = new ArrayBlockingQueue<PendingCommand>(
+            PENDING_COMMAND_LIMIT + 1);
+
+    private final MonkeyResponseWriter output;
+
+    // The id of the request currently being executed. Only meaningful in the
+    // framed protocol, where every request line starts with its id.
+    private int requestId;
 
-        // Wake the device up in preparation for doing some commands.
-        wake();
+    // Read side state, only changed by the thread that feeds offerLine.
+    // helloReceived is also read by the timeout check.
+    private volatile boolean helloReceived;
+    // Whether the client has asked for the framed protocol. Request lines
+    // after "protocol framed" carry a request id, so this has to be tracked
+    // while reading rather than when the switch is executed.
+    private boolean readingFramed;
 
+    // Set once quit or the end of the stream has been executed.
+    private volatile boolean closed;
+    // Set when offerLine refused more input, cleared once readResumer ran.
+    private volatile boolean readPaused;
+    private Runnable readResumer;
+
+    /**
+     * @param mAm    the activity manager.
+     * @param output where to write responses to.
+     */
+    MonkeySourceNetwork(IActivityManager mAm, MonkeyResponseWriter output) {
+        this.output = output;
+        this.session = new MonkeySession(mAm, output);
+        this.commandQueue = session.getCommandQueue();
     }
 
     /**
-     * Helper function for commandLineSplit that replaces quoted charaters with
-     * their real values.
+     * @return the state of the client of this source.
+     */
+    MonkeySession getSession() {
+        return session;
+    }
+
+    /**
+     * Set the callback that is run on the executing thread once a connection
+     * that was told to stop reading (see {@link #offerLine}) may read again.
+     */
+    void setReadResumer(Runnable readResumer) {
+        this.readResumer = readResumer;
+    }
+
+    /**
+     * Set the executor notifications are written to the client on.
+     */
+    void setNotificationExecutor(Executor notificationExecutor) {
+        session.setNotificationExecutor(notificationExecutor);
+    }
+
+    /**
+     * Set the callback that has getNextEvent called again once a parked
+     * session was woken up, see {@link MonkeySession#park}.
+     */
+    void setResumer(Runnable resumer) {
+        session.setResumer(resumer);
+    }
+
+    /**
+     * @return true while a command waits without holding on to the worker,
+     *         whether or not it was woken up yet.
+     */
+    boolean isWaiting() {
+        return session.isWaiting();
+    }
+
+    /**
+     * Parse one request line read from the client and queue it up for
+     * getNextEvent. Must be called from a single reading thread.
      *
-     * @param input the string to do replacement on.
-     * @return the results with the characters replaced.
+     * @param line   the UTF-8 encoded request line, without the line
+     *               terminator. It isn't referenced after the call returns.
+     * @param offset where the line starts in the buffer.
+     * @param length the length of the line.
+     * @return false if the caller should stop reading until the read resumer
+     *         is run, or if the client didn't say hello and should be dropped.
+     */
+    boolean offerLine(byte[] line, int offset, int length) {
+        PendingCommand pending = freeCommands.poll();
+        if (pending == null) {
+            pending = new PendingCommand();
+        }
+        pending.parts.parse(line, offset, length);
+        if (!helloReceived) {
+            boolean hello = pending.parts.size() == 1 && pending.parts.equalsAt(0, HELLO);
+            recycle(pending);
+            if (!hello) {
+                Log.w(TAG, "wrong hello msg!");
+                closed = true;
+                return false;
+            }
+            helloReceived = true;
+            // Wake the device up in preparation for doing some commands.
+            wake();
+            return true;
+        }
+        if (!parseCommand(pending, readingFramed)) {
+            recycle(pending);
+            return true;
+        }
+        if (pending.kind == PendingCommand.KIND_PROTOCOL && pending.parts.size() == 2) {
+            if (PROTOCOL_FRAMED.equals(pending.parts.get(1))) {
+                readingFramed = true;
+            } else if (PROTOCOL_LINE.equals(pending.parts.get(1))) {
+                readingFramed = false;
+            }
+        }
+        pendingCommands.offer(pending);
+        if (pendingCommands.size() >= PENDING_COMMAND_LIMIT) {
+            readPaused = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tell the source that the client has gone away. Requests that were already
+     * read still get executed.
      */
-    private static String replaceQuotedChars(String input) {
-        return input.replace("\\\"", "\"");
+    void offerEnd() {
+        pendingCommands.offer(END);
     }
 
     /**
-     * This function splits the given line into String parts. It obey's quoted
-     * strings and returns them as a single part.
+     * @return true once the client said hello.
+     */
+    boolean isHelloReceived() {
+        return helloReceived;
+    }
+
+    /**
+     * @return true if there are requests waiting to be executed, and the
+     *         session isn't parked or has been woken up.
+     */
+    boolean hasPendingCommands() {
+        if (session.isWaiting()) {
+            return !session.isParked();
+        }
+        return !pendingCommands.isEmpty() || commandQueue.hasQueuedEvents();
+    }
+
+    /**
+     * @return true once the client said quit, hung up, or failed to say hello.
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Hand an executed request back to the reading side for reuse.
+     */
+    private void recycle(PendingCommand pending) {
+        if (pending != END) {
+            pending.command = null;
+            pending.error = null;
+            freeCommands.offer(pending);
+        }
+    }
+
+    /**
+     * Classify a split request line.
      *
-     * "This is a test" -> returns only one element This is a test -> returns four
-     * elements
+     * @param pending the request, its parts already split.
+     * @param framed  whether the line starts with a request id.
+     * @return false if the line should be ignored.
+     */
+    private static boolean parseCommand(PendingCommand pending, boolean framed) {
+        MonkeyCommandLine parts = pending.parts;
+        int id = 0;
+        if (framed) {
+            if (parts.isEmpty() || !parts.isInt(0)) {
+                pending.set(PendingCommand.KIND_MALFORMED, 0, null, "Malformed request id");
+                return true;
+            }
+            id = parts.getInt(0);
+            parts.dropFirst();
+        }
+
+        if (parts.isEmpty()) {
+            // Only a framed client is waiting for an answer to this.
+            pending.set(PendingCommand.KIND_MALFORMED, id, null, "Empty command");
+            return framed;
+        }
+
+        // Do quit checking here
+        if (parts.size() == 1 && parts.equalsAt(0, QUIT)) {
+            pending.set(PendingCommand.KIND_QUIT, id, null, null);
+            return true;
+        }
+
+        // Do comment checking here. Comments aren't a
+        // command, so we don't echo anything back to the
+        // user.
+        if (parts.startsWith(0, '#')) {
+            return false;
+        }
+
+        if (parts.equalsAt(0, PROTOCOL)) {
+            pending.set(PendingCommand.KIND_PROTOCOL, id, null, null);
+        } else if (parts.equalsAt(0, BATCH)) {
+            pending.set(PendingCommand.KIND_BATCH, id, null, null);
+        } else if (parts.equalsAt(0, SUBSCRIBE) || parts.equalsAt(0, UNSUBSCRIBE)) {
+            pending.set(PendingCommand.KIND_SUBSCRIBE, id, null, null);
+        } else {
+            pending.set(PendingCommand.KIND_COMMAND, id, findCommand(parts), null);
+        }
+        return true;
+    }
+
+    /**
+     * Look up the command named by the first word, without creating a String
+     * for it.
      *
-     * @param line the line to parse
-     * @return the List of elements
-     */
-    private static List<String> commandLineSplit(String line) {
-        ArrayList<String> result = new ArrayList<String>();
-        StringTokenizer tok = new StringTokenizer(line);
-
-        boolean insideQuote = false;
-        StringBuffer quotedWord = new StringBuffer();
-        while (tok.hasMoreTokens()) {
-            String cur = tok.nextToken();
-            if (!insideQuote && cur.startsWith("\"")) {
-                // begin quote
-                quotedWord.append(replaceQuotedChars(cur));
-                insideQuote = true;
-            } else if (insideQuote) {
-                // end quote
-                if (cur.endsWith("\"")) {
-                    insideQuote = false;
-                    quotedWord.append(" ").append(replaceQuotedChars(cur));
-                    String word = quotedWord.toString();
-
-                    // trim off the quotes
-                    result.add(word.substring(1, word.length() - 1));
-                } else {
-                    quotedWord.append(" ").append(replaceQuotedChars(cur));
-                }
-            } else {
-                result.add(replaceQuotedChars(cur));
+     * @return the command, or null if there is none by that name.
+     */
+    private static MonkeyCommand findCommand(MonkeyCommandLine parts) {
+        for (int i = 0; i < COMMAND_NAMES.length; i++) {
+            if (parts.equalsAt(0, COMMAND_NAMES[i])) {
+                return COMMANDS[i];
             }
         }
-        return result;
+        return null;
     }
 
     /**
      * Translate the given command line into a MonkeyEvent.
      *
-     * @param commandLine the full command line given.
-     */
-    private void translateCommand(String commandLine) {
-        Log.d(TAG, "translateCommand: " + commandLine);
-        List<String> parts = commandLineSplit(commandLine);
-        if (parts.size() > 0) {
-            MonkeyCommand command = COMMAND_MAP.get(parts.get(0));
-            if (command != null) {
-                MonkeyCommandReturn ret = command.translateCommand(parts, commandQueue);
+     * @param pending the parsed command line.
+     */
+    private void translateCommand(PendingCommand pending) throws IOException {
+        // Only pay for building the log lines when they are wanted, a stream
+        // of touch moves shouldn't create garbage.
+        boolean debug = Log.isLoggable(TAG, Log.DEBUG);
+        if (debug) {
+            Log.d(TAG, "translateCommand: " + pending.parts);
+        }
+        if (pending.command != null) {
+            long time = System.currentTimeMillis();
+            MonkeyCommandReturn ret = pending.command.translateCommand(pending.parts, commandQueue);
+            if (debug) {
+                Log.d(TAG, "translateCommand used time : "
+                        + String.format(Locale.getDefault(), "% 6d", System.currentTimeMillis() - time)
+                        + " , command : " + pending.parts);
+            }
+            DeferredReturn deferredReturn = session.getDeferredReturn();
+            if (deferredReturn != null) {
+                // deferreturn answers twice, both times for this request
+                deferredReturn.setRequestId(requestId);
+            }
+            if (session.getContinuation() != null) {
+                // answered once the continuation is done
+                continuationRequestId = requestId;
+            } else {
                 handleReturn(ret);
             }
+        } else if (output.isFramed()) {
+            // A framed client is waiting for this request id, so it can't
+            // be silently dropped.
+            returnError("Unknown command: " + pending.parts.get(0));
         }
     }
 
-    private void handleReturn(MonkeyCommandReturn ret) {
-        if (ret.wasSuccessful()) {
-            if (ret.hasMessage()) {
-                returnOk(ret.getMessage());
-            } else {
-                returnOk();
+    /**
+     * The commands of a batch request and the returns collected so far. The
+     * commands are run one at a time, and the events of each are injected
+     * before the next one runs, so e.g. a queryview sees the result of a
+     * preceding tap.
+     */
+    private static class Batch {
+        final PendingCommand pending;
+        final int requestId;
+        final List<List<String>> commands = new ArrayList<List<String>>();
+        final JSONArray returns = new JSONArray();
+        int next;
+
+        /**
+         * @param pending the batch request. The commands are views of its
+         *                parts, so it must not be recycled before the batch
+         *                is done.
+         */
+        Batch(PendingCommand pending) {
+            this.pending = pending;
+            this.requestId = pending.requestId;
+            List<String> parts = pending.parts;
+            int start = 1;
+            for (int i = 1; i <= parts.size(); i++) {
+                if (i == parts.size() || BATCH_SEPARATOR.equals(parts.get(i))) {
+                    if (i > start) {
+                        commands.add(parts.subList(start, i));
+                    }
+                    start = i + 1;
+                }
             }
+        }
+
+        boolean hasNext() {
+            return next < commands.size();
+        }
+
+        List<String> next() {
+            return commands.get(next++);
+        }
+
+        void addReturn(MonkeyCommandReturn ret) {
+            returns.put(toLine(ret));
+        }
+
+        /**
+         * Replace the return of the last command, for deferreturn.
+         */
+        void replaceLastReturn(MonkeyCommandReturn ret) throws JSONException {
+            returns.put(returns.length() - 1, toLine(ret));
+        }
+
+        MonkeyCommandReturn getReturn() {
+            return new MonkeyCommandReturn(true, returns.toString());
+        }
+    }
+
+    // The batch currently being executed, if any.
+    private Batch batch;
+    // The request the continuation of the session answers.
+    private int continuationRequestId;
+    // The uptime the session sleeps until for a throttle event.
+    private long sleepUntil;
+
+    /**
+     * Run the next command of the current batch, or answer the batch request
+     * once all of them ran.
+     */
+    private void stepBatch() throws IOException {
+        if (!batch.hasNext()) {
+            handleReturn(batch.requestId, batch.getReturn());
+            recycle(batch.pending);
+            batch = null;
+            return;
+        }
+        List<String> parts = batch.next();
+        MonkeyCommand command = COMMAND_MAP.get(parts.get(0));
+        if (command == null) {
+            batch.addReturn(new MonkeyCommandReturn(false, "Unknown command: " + parts.get(0)));
+            return;
+        }
+        batch.addReturn(command.translateCommand(parts, commandQueue));
+    }
+
+    /**
+     * @return the return value the way the line protocol writes it.
+     */
+    private static String toLine(MonkeyCommandReturn ret) {
+        if (ret.hasData()) {
+            // A batch answers with text only.
+            return "OK:" + Base64.encodeToString(ret.getData(), 0, ret.getDataLength(), Base64.NO_WRAP);
+        }
+        String status = ret.wasSuccessful() ? "OK" : "ERROR";
+        return ret.hasMessage() ? status + ":" + ret.getMessage() : status;
+    }
+
+    /**
+     * Switch the response format of this connection.
+     *
+     * @param parts the split "protocol [line|framed]" command line.
+     */
+    private void switchProtocol(List<String> parts) throws IOException {
+        if (parts.size() != 2) {
+            handleReturn(EARG);
+            return;
+        }
+        String protocol = parts.get(1);
+        if (PROTOCOL_FRAMED.equals(protocol)) {
+            // Acknowledge in the current format, then switch.
+            returnOk(PROTOCOL_FRAMED);
+            output.setFramed(true);
+        } else if (PROTOCOL_LINE.equals(protocol)) {
+            returnOk(PROTOCOL_LINE);
+            output.setFramed(false);
         } else {
-            if (ret.hasMessage()) {
-                returnError(ret.getMessage());
-            } else {
-                returnError();
+            handleReturn(EARG);
+        }
+    }
+
+    /**
+     * Start, change or stop the subscription of this connection.
+     *
+     * @param parts the split "subscribe [type] ..." or "unsubscribe" line.
+     */
+    private void subscribe(List<String> parts) throws IOException {
+        if (UNSUBSCRIBE.equals(parts.get(0))) {
+            if (parts.size() != 1) {
+                handleReturn(EARG);
+                return;
             }
+            session.unsubscribe();
+            returnOk();
+            return;
+        }
+        int types = MonkeyNotifier.parseTypes(parts.subList(1, parts.size()));
+        if (types == 0) {
+            handleReturn(EARG);
+            return;
         }
+        // Acknowledge first, so the client sees the OK before any notification.
+        returnOk();
+        if (!session.subscribe(types, requestId)) {
+            Log.w(TAG, "Notifications can't be delivered to this client");
+        }
+    }
+
+    private void handleReturn(MonkeyCommandReturn ret) throws IOException {
+        handleReturn(requestId, ret);
     }
 
+    private void handleReturn(int requestId, MonkeyCommandReturn ret) throws IOException {
+        if (ret.hasData()) {
+            output.writeData(requestId, ret.getData(), 0, ret.getDataLength());
+        } else if (ret.hasEncodedMessage()) {
+            output.write(requestId, ret.wasSuccessful(), ret.getEncodedMessage(), 0, ret.getEncodedLength());
+        } else {
+            output.write(requestId, ret.wasSuccessful(), ret.getMessage());
+        }
+    }
+
+    /**
+     * Get the next event to inject. Never blocks waiting for the client.
+     *
+     * @return the next event, or null if all requests read so far have been
+     *         executed or the session is parked. Check {@link #isClosed()} to
+     *         tell whether more may follow.
+     */
     public MonkeyEvent getNextEvent() {
-        // Now, get the next command. This call may block, but that's OK
         try {
-            while (true) {
+            while (!closed) {
+                // A waiting command is looked at again once the session was
+                // woken up, the worker is free for other clients meanwhile.
+                if (!session.unpark()) {
+                    return null;
+                }
+                long now = SystemClock.uptimeMillis();
+                if (now < sleepUntil) {
+                    // Woken up early, e.g. by a notification.
+                    session.park(sleepUntil, -1);
+                    continue;
+                }
+
                 // Check to see if we have any events queued up. If
                 // we do, use those until we have no more. Then get
                 // more input from the user.
                 MonkeyEvent queuedEvent = commandQueue.getNextQueuedEvent();
-                if (queuedEvent != null) {
+                if (queuedEvent instanceof MonkeyThrottleEvent) {
+                    // Sleep with the session parked rather than in
+                    // injectEvent, which would hold on to the worker.
+                    sleepUntil = now + ((MonkeyThrottleEvent) queuedEvent).getThrottle();
+                    session.park(sleepUntil, -1);
+                    continue;
+                } else if (queuedEvent != null) {
                     // dispatch the event
                     return queuedEvent;
                 }
 
+                // A command waiting for its events to be injected goes on now
+                // that they have been.
+                Continuation continuation = session.getContinuation();
+                if (continuation != null) {
+                    MonkeyCommandReturn ret = continuation.resume(commandQueue);
+                    if (ret == null) {
+                        continue;
+                    }
+                    session.setContinuation(null);
+                    if (batch != null) {
+                        batch.replaceLastReturn(ret);
+                    } else {
+                        handleReturn(continuationRequestId, ret);
+                    }
+                }
+
                 // Check to see if we have any returns that have been deferred. If so, now that
                 // we've run the queued commands, wait for the given event to happen (or the
                 // timeout
                 // to be reached), and handle the deferred MonkeyCommandReturn.
+                DeferredReturn deferredReturn = session.getDeferredReturn();
                 if (deferredReturn != null) {
-                    Log.d(TAG, "Waiting for event");
-                    MonkeyCommandReturn ret = deferredReturn.waitForEvent();
-                    deferredReturn = null;
-                    handleReturn(ret);
+                    MonkeyCommandReturn ret = deferredReturn.poll(now);
+                    if (ret == null) {
+                        Log.d(TAG, "Waiting for event");
+                        session.park(deferredReturn.getNextCheck(), -1);
+                        continue;
+                    }
+                    int deferredRequestId = deferredReturn.getRequestId();
+                    session.setDeferredReturn(null);
+                    if (batch != null) {
+                        batch.replaceLastReturn(ret);
+                    } else {
+                        handleReturn(deferredRequestId, ret);
+                    }
                 }
 
-                String command = input.readLine();
-
-                if (command == null) {
+                // The events of the previous command of a batch have all been
+                // injected, go on with the next one.
+                if (batch != null) {
+                    stepBatch();
                     continue;
                 }
 
-                // Do quit checking here
-                if (QUIT.equals(command)) {
-                    // then we're done
-                    Log.d(TAG, "Quit requested");
-                    // let the host know the command ran OK
-                    returnOk();
+                // Whatever the client sent while the previous events were
+                // being injected has already been parsed.
+                PendingCommand pending = pendingCommands.poll();
+                if (pending == null) {
                     return null;
                 }
-
-                // Do comment checking here. Comments aren't a
-                // command, so we don't echo anything back to the
-                // user.
-                if (command.startsWith("#")) {
-                    // keep going
-                    continue;
+                if (readPaused && pendingCommands.size() <= PENDING_COMMAND_LIMIT / 2) {
+                    readPaused = false;
+                    readResumer.run();
                 }
-
-                // Translate the command line. This will handle returning error/ok to the user
-                long time = System.currentTimeMillis();
-                translateCommand(command);
-                Log.i(TAG,
-                        "translateCommand used time : "
-                                + String.format(Locale.getDefault(), "% 6d", System.currentTimeMillis() - time)
-                                + " , command : " + command);
+                requestId = pending.requestId;
+
+                switch (pending.kind) {
+                    case PendingCommand.KIND_END:
+                        Log.d(TAG, "Client closed the connection");
+                        close();
+                        return null;
+                    case PendingCommand.KIND_QUIT:
+                        // then we're done
+                        Log.d(TAG, "Quit requested");
+                        // let the host know the command ran OK
+                        returnOk();
+                        close();
+                        return null;
+                    case PendingCommand.KIND_PROTOCOL:
+                        switchProtocol(pending.parts);
+                        break;
+                    case PendingCommand.KIND_MALFORMED:
+                        returnError(pending.error);
+                        break;
+                    case PendingCommand.KIND_BATCH:
+                        batch = new Batch(pending);
+                        if (batch.commands.isEmpty()) {
+                            batch = null;
+                            handleReturn(EARG);
+                            break;
+                        }
+                        // recycled once the batch is done
+                        continue;
+                    case PendingCommand.KIND_SUBSCRIBE:
+                        subscribe(pending.parts);
+                        break;
+                    default:
+                        // Translate the command line. This will handle returning error/ok to the user
+                        translateCommand(pending);
+                        break;
+                }
+                recycle(pending);
             }
         } catch (Exception e) {
             e.printStackTrace();
             Log.e(TAG, "Exception: ", e);
-            return null;
+            close();
         }
+        return null;
     }
 
     /**
-     * Returns ERROR to the user.
+     * Mark the source closed. Requests that were read but not executed yet are
+     * dropped.
      */
-    private void returnError() {
-        output.println(ERROR_STR);
+    private void close() {
+        closed = true;
+        batch = null;
+        pendingCommands.clear();
+        session.close();
     }
 
     /**
@@ -921,17 +1641,15 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
      *
      * @param msg the error message to include
      */
-    private void returnError(String msg) {
-        output.print(ERROR_STR);
-        output.print(":");
-        output.println(msg);
+    private void returnError(String msg) throws IOException {
+        output.write(requestId, false, msg);
     }
 
     /**
      * Returns OK to the user.
      */
-    private void returnOk() {
-        output.println(OK_STR);
+    private void returnOk() throws IOException {
+        output.write(requestId, true, null);
     }
 
     /**
@@ -939,10 +1657,8 @@ public class MonkeySourceNetwork implements MonkeyEventSource {
      *
      * @param returnValue the value to return from this command.
      */
-    private void returnOk(String returnValue) {
-        output.print(OK_STR);
-        output.print(":");
-        output.println(returnValue);
+    private void returnOk(String returnValue) throws IOException {
+        output.write(requestId, true, returnValue);
     }
 
     public void setVerbose(int verbose) {
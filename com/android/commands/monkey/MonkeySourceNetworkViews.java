@@ -17,21 +17,32 @@
 package com.android.commands.monkey;
 
 import static com.android.commands.monkey.MonkeySourceNetwork.EARG;
+import static com.android.commands.monkey.MonkeySourceNetwork.OK;
 
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.android.commands.monkey.MonkeySourceNetwork.CommandQueue;
+import com.android.commands.monkey.MonkeySourceNetwork.Continuation;
 import com.android.commands.monkey.MonkeySourceNetwork.MonkeyCommand;
 import com.android.commands.monkey.MonkeySourceNetwork.MonkeyCommandReturn;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import android.accessibilityservice.AccessibilityServiceInfo;
 import android.app.UiAutomation;
 import android.app.UiAutomationConnection;
 import android.app.UiAutomation.OnAccessibilityEventListener;
@@ -41,10 +52,13 @@ import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.hardware.display.DisplayManagerGlobal;
+import android.os.Bundle;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 import android.view.Display;
+import android.view.MotionEvent;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityInteractionClient;
 import android.view.accessibility.AccessibilityNodeInfo;
@@ -60,13 +74,29 @@ public class MonkeySourceNetworkViews {
 
     private static UiAutomationConnection mUiAutomationConnection;
 
-    private static boolean hasStateChange = true;
+    // Bumped for every accessibility event. Each session remembers the version
+    // it has seen, so clients asking getisviewchange don't reset each other.
+    // Only written by the handler thread delivering the events.
+    private static volatile long sChangeVersion;
+    // The uptime the last event arrived at, 0 before the first one. Written
+    // like sChangeVersion.
+    private static volatile long sLastEventTime;
+    // Run after every event, e.g. to wake up sessions parked in waitfor.
+    private static final Set<Runnable> sChangeListeners = new CopyOnWriteArraySet<Runnable>();
 
     private static OnAccessibilityEventListener listener = new OnAccessibilityEventListener() {
 
         @Override
         public void onAccessibilityEvent(AccessibilityEvent event) {
-            hasStateChange = true;
+            sLastEventTime = SystemClock.uptimeMillis();
+            sChangeVersion++;
+            MonkeyViewSnapshot.onAccessibilityEvent(event);
+            MonkeyNodeHandles.onAccessibilityEvent(event);
+            MonkeyNotifier.onAccessibilityEvent(event);
+            // Last, so whoever is run sees the snapshots invalidated.
+            for (Runnable changeListener : sChangeListeners) {
+                changeListener.run();
+            }
         }
 
     };
@@ -75,6 +105,7 @@ public class MonkeySourceNetworkViews {
 
     private static final String NO_ACCESSIBILITY_EVENT = "No accessibility event has occured yet";
     private static final String NO_NODE = "Node with given ID does not exist";
+    private static final String NO_HANDLE = "Handle does not exist or its node is gone";
     private static final Map<String, ViewIntrospectionCommand> COMMAND_MAP = new HashMap<String, ViewIntrospectionCommand>();
 
     /* Interface for view queries */
@@ -101,10 +132,28 @@ public class MonkeySourceNetworkViews {
         COMMAND_MAP.put("getchildren", new GetChildren());
         COMMAND_MAP.put("getaccessibilityids", new GetAccessibilityIds());
         COMMAND_MAP.put("gettree", new GetTree());
+        COMMAND_MAP.put("find", new Find());
     }
 
     private static final HandlerThread sHandlerThread = new HandlerThread(HANDLER_THREAD_NAME);
 
+    // How many windows gettree allwindows fetches at the same time.
+    private static final int WINDOW_FETCHER_COUNT = 4;
+
+    // Fetches the windows of gettree allwindows side by side, so it takes
+    // about as long as the largest window rather than all of them in turn.
+    private static final ExecutorService sWindowFetchers = Executors.newFixedThreadPool(WINDOW_FETCHER_COUNT,
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "MonkeyWindowFetcher-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     /**
      * Registers the event listener for AccessibilityEvents. Also sets up a
      * communication connection so we can query the accessibility service.
@@ -116,11 +165,110 @@ public class MonkeySourceNetworkViews {
         sUiTestAutomationBridge = new UiAutomation(sHandlerThread.getLooper(), mUiAutomationConnection);
         sUiTestAutomationBridge.setOnAccessibilityEventListener(listener);
         sUiTestAutomationBridge.connect();
+        retrieveWindows();
+    }
+
+    /**
+     * Ask for all interactive windows to be reported, not just the active one,
+     * so getWindows() returns them.
+     */
+    private static void retrieveWindows() {
+        AccessibilityServiceInfo info = sUiTestAutomationBridge.getServiceInfo();
+        if (info != null && (info.flags & AccessibilityServiceInfo.FLAG_RETRIEVE_INTERACTIVE_WINDOWS) == 0) {
+            info.flags |= AccessibilityServiceInfo.FLAG_RETRIEVE_INTERACTIVE_WINDOWS;
+            sUiTestAutomationBridge.setServiceInfo(info);
+        }
+    }
+
+    /**
+     * @return the windows on screen, the topmost window first.
+     */
+    private static List<AccessibilityWindowInfo> getWindows() {
+        List<AccessibilityWindowInfo> windows = new ArrayList<AccessibilityWindowInfo>(
+                sUiTestAutomationBridge.getWindows());
+        Collections.sort(windows, new Comparator<AccessibilityWindowInfo>() {
+            @Override
+            public int compare(AccessibilityWindowInfo a, AccessibilityWindowInfo b) {
+                return Integer.compare(b.getLayer(), a.getLayer());
+            }
+        });
+        return windows;
+    }
+
+    /**
+     * Get snapshots of the windows on screen, the topmost window first. If the
+     * windows can't be retrieved, only the active window is returned.
+     *
+     * @return the snapshots, empty if there is no window.
+     */
+    public static List<MonkeyViewSnapshot> getWindowSnapshots() {
+        List<AccessibilityWindowInfo> windows = getWindows();
+        List<MonkeyViewSnapshot> snapshots = new ArrayList<MonkeyViewSnapshot>(windows.size());
+        for (AccessibilityWindowInfo window : windows) {
+            AccessibilityNodeInfo root = window.getRoot();
+            MonkeyViewSnapshot snapshot = root != null ? MonkeyViewSnapshot.obtain(root) : null;
+            if (snapshot != null) {
+                snapshots.add(snapshot);
+            }
+        }
+        if (snapshots.isEmpty()) {
+            AccessibilityNodeInfo root = sUiTestAutomationBridge.getRootInActiveWindow();
+            MonkeyViewSnapshot snapshot = root != null ? MonkeyViewSnapshot.obtain(root) : null;
+            if (snapshot != null) {
+                snapshots.add(snapshot);
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * @return the number of accessibility events received so far.
+     */
+    public static long getChangeVersion() {
+        return sChangeVersion;
+    }
+
+    /**
+     * Have a callback run after every accessibility event, on the thread
+     * delivering them. It must return quickly.
+     */
+    public static void addChangeListener(Runnable changeListener) {
+        sChangeListeners.add(changeListener);
+    }
+
+    public static void removeChangeListener(Runnable changeListener) {
+        sChangeListeners.remove(changeListener);
+    }
+
+    /**
+     * Tell when the UI counts as settled, that is once no accessibility event
+     * arrived for a while, as far as the events so far go. A later event
+     * moves the time on.
+     *
+     * @param since the uptime to count the quiet time from if no event
+     *              arrived after it, e.g. when the last input was injected.
+     * @param quiet how long no event may arrive in milliseconds.
+     * @return the uptime the UI is idle at.
+     */
+    public static long getIdleTime(long since, long quiet) {
+        return Math.max(sLastEventTime, since) + quiet;
+    }
+
+    /**
+     * @return the package of the active window, or null if there is none.
+     */
+    public static String getActivePackage() {
+        AccessibilityNodeInfo root = sUiTestAutomationBridge.getRootInActiveWindow();
+        if (root == null || root.getPackageName() == null) {
+            return null;
+        }
+        return root.getPackageName().toString();
     }
 
     public static void reconnect() {
         sUiTestAutomationBridge.disconnect();
         sUiTestAutomationBridge.connect();
+        retrieveWindows();
     }
 
     private static AccessibilityNodeInfo getNodeByAccessibilityIds(String windowString, String viewString) {
@@ -140,25 +288,144 @@ public class MonkeySourceNetworkViews {
     }
 
     /**
-     * Command to list view as tree under given node or root node
+     * List the ids and bounds of the nodes a selector found, one node per line
+     * or as a JSON array.
+     */
+    private static MonkeyCommandReturn returnMatches(MonkeyViewSnapshot snapshot, int[] found, boolean json) {
+        MonkeyResponseBuffer out = MonkeyResponseBuffer.get();
+        if (json) {
+            out.beginArray();
+        }
+        appendMatches(out, snapshot, found, json);
+        if (json) {
+            out.endArray();
+        }
+        return out.toReturn();
+    }
+
+    /**
+     * Append nodes the way returnMatches() returns them, inside an array
+     * already begun for JSON.
+     */
+    private static void appendMatches(MonkeyResponseBuffer out, MonkeyViewSnapshot snapshot, int[] found,
+            boolean json) {
+        for (int i : found) {
+            if (json) {
+                out.beginObject();
+                out.field("resource_id", snapshot.getSourceNodeId(i));
+                out.field("windowId", snapshot.getWindowId(i));
+                out.field("viewId", snapshot.getViewId(i));
+                out.field("bounds", snapshot.getBoundsString(i));
+                out.endObject();
+            } else {
+                out.append(snapshot.getWindowId(i)).append(" ").append(snapshot.getViewId(i)).append(" ")
+                        .append(snapshot.getBoundsString(i)).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Command to list view as tree under given node or root node. The tree is
+     * read from a cached MonkeyViewSnapshot unless nocache is given. With diff,
+     * only the nodes added, removed or changed since the given version are
+     * listed, along with the current version to pass next time.
+     * <p>
+     * fields limits the properties listed per node. maxdepth, visibleonly and
+     * minsize leave out whole subtrees, which are then not fetched either;
+     * clickableonly lists only clickable nodes and their ancestors. The node
+     * queried is always listed. Diffs list everything.
      */
     public static class GetTree implements ViewIntrospectionCommand {
-        // queryview gettree [text|json]
+        // The properties of a node, named as in the json format.
+        private static final String[] FIELDS = {
+            "deep", "index", "text", "resource_id", "resource_id_name", "bounds", "class", "inputType",
+            "isEditable", "isClickable", "isCheckable", "isChecked", "isVisibleToUser", "isAccessibilityFocused",
+            "windowId", "viewId",
+        };
+        private static final int ALL_FIELDS = (1 << FIELDS.length) - 1;
+        private static final int DEEP = 1;
+        private static final int INDEX = 1 << 1;
+        private static final int TEXT = 1 << 2;
+        private static final int RESOURCE_ID = 1 << 3;
+        private static final int RESOURCE_ID_NAME = 1 << 4;
+        private static final int BOUNDS = 1 << 5;
+        private static final int CLASS = 1 << 6;
+        private static final int INPUT_TYPE = 1 << 7;
+        private static final int IS_EDITABLE = 1 << 8;
+        private static final int IS_CLICKABLE = 1 << 9;
+        private static final int IS_CHECKABLE = 1 << 10;
+        private static final int IS_CHECKED = 1 << 11;
+        private static final int IS_VISIBLE_TO_USER = 1 << 12;
+        private static final int IS_ACCESSIBILITY_FOCUSED = 1 << 13;
+        private static final int WINDOW_ID = 1 << 14;
+        private static final int VIEW_ID = 1 << 15;
+
+        // queryview gettree [text|json] [nocache]
         // queryview gettree text
         // queryview gettree json
         // queryview [id type] [id] gettree json
         // queryview accessibilityids 1381 890 gettree text
         // queryview viewid com.xxx.xxxx:id/xxxxx gettree json
+        // queryview gettree json nocache
+        // queryview gettree diff [version] [text|json]
+        // queryview gettree diff 0 json
+        // queryview gettree diff 12 json
+        // queryview gettree json fields text,bounds,class maxdepth 6 visibleonly minsize 5 clickableonly
+        // queryview gettree allwindows [text|json]
         public MonkeyCommandReturn query(AccessibilityNodeInfo node, List<String> args) {
             String type = "text";
+            boolean allWindows = false;
+            boolean useCache = true;
+            long since = -1;
+            int fields = ALL_FIELDS;
+            int maxDepth = -1;
+            boolean visibleOnly = false;
+            int minSize = 0;
+            boolean clickableOnly = false;
             for (int i = 0; i < args.size(); i++) {
                 String arg = args.get(i);
-                if ("text".equals(arg)) {
-                    type = "text";
-                } else if ("json".equals(arg)) {
-                    type = "json";
+                try {
+                    if ("text".equals(arg)) {
+                        type = "text";
+                    } else if ("json".equals(arg)) {
+                        type = "json";
+                    } else if ("allwindows".equals(arg)) {
+                        allWindows = true;
+                    } else if ("nocache".equals(arg)) {
+                        useCache = false;
+                    } else if ("diff".equals(arg)) {
+                        since = Long.parseLong(args.get(++i));
+                    } else if ("fields".equals(arg)) {
+                        fields = parseFields(args.get(++i));
+                        if (fields == 0) {
+                            return EARG;
+                        }
+                    } else if ("maxdepth".equals(arg)) {
+                        maxDepth = Integer.parseInt(args.get(++i));
+                        if (maxDepth < 0) {
+                            return EARG;
+                        }
+                    } else if ("visibleonly".equals(arg)) {
+                        visibleOnly = true;
+                    } else if ("minsize".equals(arg)) {
+                        minSize = Integer.parseInt(args.get(++i));
+                    } else if ("clickableonly".equals(arg)) {
+                        clickableOnly = true;
+                    }
+                } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                    return EARG;
                 }
             }
+            MonkeyViewSnapshot.Pruning pruning = null;
+            if (since < 0 && (maxDepth >= 0 || visibleOnly || minSize > 0)) {
+                pruning = new MonkeyViewSnapshot.Pruning(maxDepth, visibleOnly, minSize);
+            }
+            if (allWindows) {
+                if (since >= 0) {
+                    return EARG;
+                }
+                return allWindows("json".equals(type), useCache, pruning, clickableOnly, fields);
+            }
             /*
              * Occasionally the API will generate an event with no source, which is
              * essentially the same as it generating no event at all
@@ -168,14 +435,25 @@ public class MonkeySourceNetworkViews {
             }
 
             try {
+                MonkeyViewSnapshot snapshot = useCache ? MonkeyViewSnapshot.obtain(node, pruning)
+                        : MonkeyViewSnapshot.capture(node, pruning);
+                if (snapshot == null) {
+                    return new MonkeyCommandReturn(false, NO_NODE);
+                }
+                if (since >= 0) {
+                    return diff(node, snapshot, since, "json".equals(type), fields);
+                }
+                // A cached snapshot may hold more than asked for.
+                boolean[] keep = pruning != null || clickableOnly ? select(snapshot, pruning, clickableOnly) : null;
+                // The tree is written straight into the response, without
+                // building a String or JSONObject for it first.
+                MonkeyResponseBuffer out = MonkeyResponseBuffer.get();
                 if ("text".equals(type)) {
-                    StringBuilder fieldBuilder = new StringBuilder();
-                    loopViews(node, 0, 0, fieldBuilder);
-                    return new MonkeyCommandReturn(true, fieldBuilder.toString());
+                    loopViews(snapshot, 0, keep, fields, out);
+                    return out.toReturn();
                 } else if ("json".equals(type)) {
-                    JSONObject jsObj = new JSONObject();
-                    loopViews(node, 0, 0, jsObj);
-                    return new MonkeyCommandReturn(true, jsObj.toString());
+                    loopViewsJson(snapshot, 0, keep, fields, out);
+                    return out.toReturn();
                 } else {
                     return EARG;
                 }
@@ -186,74 +464,578 @@ public class MonkeySourceNetworkViews {
             }
         }
 
-        // text
-        void loopViews(AccessibilityNodeInfo node, int deep, int index, StringBuilder sb) {
-            if (node == null) {
-                return;
+        /**
+         * List the trees of all windows on screen, the topmost window first,
+         * each with its id, type, layer and bounds. The windows are fetched
+         * concurrently.
+         */
+        private MonkeyCommandReturn allWindows(boolean json, final boolean useCache,
+                final MonkeyViewSnapshot.Pruning pruning, boolean clickableOnly, int fields) {
+            List<AccessibilityWindowInfo> windows = getWindows();
+            List<Future<MonkeyViewSnapshot>> snapshots = new ArrayList<Future<MonkeyViewSnapshot>>(windows.size());
+            for (final AccessibilityWindowInfo window : windows) {
+                snapshots.add(sWindowFetchers.submit(new Callable<MonkeyViewSnapshot>() {
+                    @Override
+                    public MonkeyViewSnapshot call() {
+                        AccessibilityNodeInfo root = window.getRoot();
+                        if (root == null) {
+                            return null;
+                        }
+                        return useCache ? MonkeyViewSnapshot.obtain(root, pruning)
+                                : MonkeyViewSnapshot.capture(root, pruning);
+                    }
+                }));
             }
+
+            MonkeyResponseBuffer out = MonkeyResponseBuffer.get();
             Rect bounds = new Rect();
-            node.getBoundsInScreen(bounds);
+            if (json) {
+                out.beginArray();
+            }
+            try {
+                for (int w = 0; w < windows.size(); w++) {
+                    AccessibilityWindowInfo window = windows.get(w);
+                    window.getBoundsInScreen(bounds);
+                    MonkeyViewSnapshot snapshot = snapshots.get(w).get();
+                    boolean[] keep = snapshot != null && (pruning != null || clickableOnly)
+                            ? select(snapshot, pruning, clickableOnly)
+                            : null;
+                    if (!json) {
+                        out.append("window id=").append(window.getId()).append(" type=")
+                                .append(windowType(window.getType())).append(" layer=").append(window.getLayer())
+                                .append(" bounds=").append(bounds.toShortString()).append(" active=")
+                                .append(window.isActive()).append(" focused=").append(window.isFocused())
+                                .append('\n');
+                        if (snapshot != null) {
+                            loopViews(snapshot, 0, keep, fields, out);
+                        }
+                        continue;
+                    }
+                    out.beginObject();
+                    out.field("windowId", window.getId());
+                    out.field("type", windowType(window.getType()));
+                    out.field("layer", window.getLayer());
+                    out.field("bounds", bounds.toShortString());
+                    out.field("isActive", window.isActive());
+                    out.field("isFocused", window.isFocused());
+                    out.name("root");
+                    if (snapshot != null) {
+                        loopViewsJson(snapshot, 0, keep, fields, out);
+                    } else {
+                        out.value((String) null);
+                    }
+                    out.endObject();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new MonkeyCommandReturn(false, e.toString());
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                return new MonkeyCommandReturn(false, e.getCause().toString());
+            }
+            if (json) {
+                out.endArray();
+            }
+            return out.toReturn();
+        }
 
-            for (int i = 0; i < deep; i++) {
-                sb.append("  ");
+        private static String windowType(int type) {
+            switch (type) {
+                case AccessibilityWindowInfo.TYPE_APPLICATION:
+                    return "application";
+                case AccessibilityWindowInfo.TYPE_INPUT_METHOD:
+                    return "input_method";
+                case AccessibilityWindowInfo.TYPE_SYSTEM:
+                    return "system";
+                case AccessibilityWindowInfo.TYPE_ACCESSIBILITY_OVERLAY:
+                    return "accessibility_overlay";
+                case AccessibilityWindowInfo.TYPE_SPLIT_SCREEN_DIVIDER:
+                    return "split_screen_divider";
+                default:
+                    return Integer.toString(type);
             }
+        }
 
-            sb.append("index=").append(index).append(" text=").append(node.getText()).append(" resource-id:")
-                    .append(node.getViewIdResourceName());
-            sb.append(" bounds=").append(bounds.toShortString());
-            sb.append(" class=").append(node.getClassName()).append(" type=").append(node.getInputType());
-            int viewId = AccessibilityNodeInfo.getAccessibilityViewId(node.getSourceNodeId());
-            String ids = node.getWindowId() + " " + viewId;
-            sb.append(" accessibilityids=[").append(ids).append("]");
-            sb.append("\n");
-            int childCount = node.getChildCount();
-            for (int i = 0; i < childCount; i++) {
-                AccessibilityNodeInfo child = node.getChild(i);
-                if (child != null) {
-                    loopViews(child, deep + 1, i, sb);
+        /**
+         * @return the FIELDS bits of a comma separated list of names, or 0 if
+         *         one is not known.
+         */
+        private static int parseFields(String list) {
+            int fields = 0;
+            for (String name : list.split(",")) {
+                int i = Arrays.asList(FIELDS).indexOf(name);
+                if (i < 0) {
+                    return 0;
                 }
+                fields |= 1 << i;
             }
+            return fields;
+        }
+
+        /**
+         * Decide which nodes of a snapshot to list.
+         *
+         * @return per node whether to list it. The ancestors of a node listed
+         *         are listed too.
+         */
+        private static boolean[] select(MonkeyViewSnapshot snapshot, MonkeyViewSnapshot.Pruning pruning,
+                boolean clickableOnly) {
+            int size = snapshot.size();
+            boolean[] keep = new boolean[size];
+            for (int i = 0; i < size;) {
+                if (pruning != null && i > 0 && (pruning.drops(snapshot, i)
+                        || !pruning.expands(snapshot.getDepth(i) - 1))) {
+                    i = snapshot.getSubtreeEnd(i);
+                } else {
+                    keep[i++] = true;
+                }
+            }
+            if (clickableOnly) {
+                // Children come after their parents, so walking backwards sees
+                // whether a node has a clickable descendant before the node.
+                boolean[] hasKept = new boolean[size];
+                for (int i = size - 1; i > 0; i--) {
+                    if (keep[i] && !hasKept[i] && !snapshot.is(i, MonkeyViewSnapshot.FLAG_CLICKABLE)) {
+                        keep[i] = false;
+                    }
+                    if (keep[i]) {
+                        hasKept[snapshot.getParent(i)] = true;
+                    }
+                }
+            }
+            return keep;
+        }
+
+        /**
+         * List what changed since the snapshot with the given version. If that
+         * version is no longer known, every node is listed as added and reset
+         * is set.
+         */
+        MonkeyCommandReturn diff(AccessibilityNodeInfo root, MonkeyViewSnapshot snapshot, long since, boolean json,
+                int fields) {
+            MonkeyViewSnapshot older = since == snapshot.getVersion() ? snapshot
+                    : MonkeyViewSnapshot.findVersion(root, since);
+            boolean reset = older == null;
+            MonkeyViewSnapshot.Diff diff;
+            if (reset) {
+                int[] all = new int[snapshot.size()];
+                for (int i = 0; i < all.length; i++) {
+                    all[i] = i;
+                }
+                diff = new MonkeyViewSnapshot.Diff(all, new int[0], new int[0]);
+            } else {
+                diff = snapshot.diff(older);
+            }
+
+            MonkeyResponseBuffer out = MonkeyResponseBuffer.get();
+            if (!json) {
+                out.append("version=").append(snapshot.getVersion()).append(" reset=").append(reset).append('\n');
+                for (int i : diff.added) {
+                    out.append("+ ");
+                    appendNode(snapshot, i, fields, out);
+                    appendParent(snapshot, i, out);
+                }
+                for (int i : diff.changed) {
+                    out.append("* ");
+                    appendNode(snapshot, i, fields, out);
+                    appendParent(snapshot, i, out);
+                }
+                for (int i : diff.removed) {
+                    out.append("- accessibilityids=[").append(older.getWindowId(i)).append(" ")
+                            .append(older.getViewId(i)).append("]\n");
+                }
+                return out.toReturn();
+            }
+
+            out.beginObject();
+            out.field("version", snapshot.getVersion());
+            out.field("reset", reset);
+            out.name("added");
+            putNodes(snapshot, diff.added, fields, out);
+            out.name("changed");
+            putNodes(snapshot, diff.changed, fields, out);
+            out.name("removed").beginArray();
+            for (int i : diff.removed) {
+                out.beginObject();
+                out.field("resource_id", older.getSourceNodeId(i));
+                out.field("windowId", older.getWindowId(i));
+                out.field("viewId", older.getViewId(i));
+                out.endObject();
+            }
+            out.endArray();
+            out.endObject();
+            return out.toReturn();
+        }
+
+        private void putNodes(MonkeyViewSnapshot snapshot, int[] nodes, int fields, MonkeyResponseBuffer out) {
+            out.beginArray();
+            for (int i : nodes) {
+                out.beginObject();
+                putNode(snapshot, i, fields, out);
+                int parent = snapshot.getParent(i);
+                if (parent >= 0) {
+                    out.field("parent", snapshot.getSourceNodeId(parent));
+                }
+                out.endObject();
+            }
+            out.endArray();
+        }
+
+        // Ends the line of appendNode with the ids of the parent.
+        private void appendParent(MonkeyViewSnapshot snapshot, int i, MonkeyResponseBuffer out) {
+            int parent = snapshot.getParent(i);
+            if (parent >= 0) {
+                out.append(" parent=[").append(snapshot.getWindowId(parent)).append(" ")
+                        .append(snapshot.getViewId(parent)).append("]");
+            }
+            out.append('\n');
+        }
+
+        // text
+        void loopViews(MonkeyViewSnapshot snapshot, int node, boolean[] keep, int fields, MonkeyResponseBuffer out) {
+            int end = snapshot.getSubtreeEnd(node);
+            for (int i = node; i < end; i++) {
+                if (keep != null && !keep[i]) {
+                    continue;
+                }
+                for (int d = 0; d < snapshot.getDepth(i); d++) {
+                    out.append("  ");
+                }
+                appendNode(snapshot, i, fields, out);
+                out.append('\n');
+            }
+        }
+
+        // One line of text, without the line end.
+        private void appendNode(MonkeyViewSnapshot snapshot, int i, int fields, MonkeyResponseBuffer out) {
+            if (fields == ALL_FIELDS) {
+                out.append("index=").append(snapshot.getIndexInParent(i)).append(" text=").append(snapshot.getText(i))
+                        .append(" resource-id:").append(snapshot.getViewIdResourceName(i));
+                out.append(" bounds=").append(snapshot.getBoundsString(i));
+                out.append(" class=").append(snapshot.getClassName(i)).append(" type=")
+                        .append(snapshot.getInputType(i));
+                out.append(" accessibilityids=[").append(snapshot.getWindowId(i)).append(" ")
+                        .append(snapshot.getViewId(i)).append("]");
+                return;
+            }
+            // The same items, leaving out those not asked for.
+            int start = out.size();
+            if ((fields & INDEX) != 0) {
+                out.append("index=").append(snapshot.getIndexInParent(i));
+            }
+            if ((fields & TEXT) != 0) {
+                separate(out, start).append("text=").append(snapshot.getText(i));
+            }
+            if ((fields & RESOURCE_ID_NAME) != 0) {
+                separate(out, start).append("resource-id:").append(snapshot.getViewIdResourceName(i));
+            }
+            if ((fields & BOUNDS) != 0) {
+                separate(out, start).append("bounds=").append(snapshot.getBoundsString(i));
+            }
+            if ((fields & CLASS) != 0) {
+                separate(out, start).append("class=").append(snapshot.getClassName(i));
+            }
+            if ((fields & INPUT_TYPE) != 0) {
+                separate(out, start).append("type=").append(snapshot.getInputType(i));
+            }
+            if ((fields & (WINDOW_ID | VIEW_ID)) != 0) {
+                separate(out, start).append("accessibilityids=[").append(snapshot.getWindowId(i)).append(" ")
+                        .append(snapshot.getViewId(i)).append("]");
+            }
+        }
+
+        private static MonkeyResponseBuffer separate(MonkeyResponseBuffer out, int start) {
+            return out.size() > start ? out.append(' ') : out;
         }
 
         // json
-        void loopViews(AccessibilityNodeInfo node, int deep, int index, JSONObject jsObj) throws JSONException {
+        void loopViewsJson(MonkeyViewSnapshot snapshot, int node, boolean[] keep, int fields,
+                MonkeyResponseBuffer out) {
+            out.beginObject();
+            putNode(snapshot, node, fields, out);
+            out.name("childrens").beginArray();
+            int end = snapshot.getSubtreeEnd(node);
+            for (int child = node + 1; child < end; child = snapshot.getSubtreeEnd(child)) {
+                if (keep == null || keep[child]) {
+                    loopViewsJson(snapshot, child, keep, fields, out);
+                }
+            }
+            out.endArray();
+            out.endObject();
+        }
+
+        private void putNode(MonkeyViewSnapshot snapshot, int node, int fields, MonkeyResponseBuffer out) {
+            if ((fields & DEEP) != 0) {
+                out.field("deep", snapshot.getDepth(node));
+            }
+            if ((fields & INDEX) != 0) {
+                out.field("index", snapshot.getIndexInParent(node));
+            }
+            if ((fields & TEXT) != 0) {
+                out.field("text", snapshot.getText(node));
+            }
+            if ((fields & RESOURCE_ID) != 0) {
+                out.field("resource_id", snapshot.getSourceNodeId(node));
+            }
+            if ((fields & RESOURCE_ID_NAME) != 0) {
+                out.field("resource_id_name", snapshot.getViewIdResourceName(node));
+            }
+            if ((fields & BOUNDS) != 0) {
+                out.field("bounds", snapshot.getBoundsString(node));
+            }
+            if ((fields & CLASS) != 0) {
+                out.field("class", snapshot.getClassName(node));
+            }
+            if ((fields & INPUT_TYPE) != 0) {
+                // Always held the max text length, which replaced the input
+                // type put under the same key.
+                out.field("inputType", snapshot.getMaxTextLength(node));
+            }
+            if ((fields & IS_EDITABLE) != 0) {
+                out.field("isEditable", snapshot.is(node, MonkeyViewSnapshot.FLAG_EDITABLE));
+            }
+            if ((fields & IS_CLICKABLE) != 0) {
+                out.field("isClickable", snapshot.is(node, MonkeyViewSnapshot.FLAG_CLICKABLE));
+            }
+            if ((fields & IS_CHECKABLE) != 0) {
+                out.field("isCheckable", snapshot.is(node, MonkeyViewSnapshot.FLAG_CHECKABLE));
+            }
+            if ((fields & IS_CHECKED) != 0) {
+                out.field("isChecked", snapshot.is(node, MonkeyViewSnapshot.FLAG_CHECKED));
+            }
+            if ((fields & IS_VISIBLE_TO_USER) != 0) {
+                out.field("isVisibleToUser", snapshot.is(node, MonkeyViewSnapshot.FLAG_VISIBLE_TO_USER));
+            }
+            if ((fields & IS_ACCESSIBILITY_FOCUSED) != 0) {
+                out.field("isAccessibilityFocused", snapshot.is(node, MonkeyViewSnapshot.FLAG_ACCESSIBILITY_FOCUSED));
+            }
+
+            if ((fields & WINDOW_ID) != 0) {
+                out.field("windowId", snapshot.getWindowId(node));
+            }
+            if ((fields & VIEW_ID) != 0) {
+                out.field("viewId", snapshot.getViewId(node));
+            }
+        }
+    }
+
+    /**
+     * Query to find the nodes below the given node matching a selector, see
+     * {@link MonkeySelector}. Only the ids and bounds of the matches are
+     * returned, one node per line, or as a JSON array.
+     */
+    public static class Find implements ViewIntrospectionCommand {
+        // queryview [id type] [id(s)] find [json] [selector]
+        // queryview find //Button[@text='OK']
+        // queryview viewid com.xxx.xxxx:id/list find json //*[@clickable]
+        public MonkeyCommandReturn query(AccessibilityNodeInfo node, List<String> args) {
+            boolean json = !args.isEmpty() && "json".equals(args.get(0));
+            if (json) {
+                args = args.subList(1, args.size());
+            }
+            if (args.isEmpty()) {
+                return EARG;
+            }
+            // The selector may have been split at its spaces.
+            StringBuilder selector = new StringBuilder(args.get(0));
+            for (int i = 1; i < args.size(); i++) {
+                selector.append(' ').append(args.get(i));
+            }
+            MonkeySelector compiled;
+            try {
+                compiled = MonkeySelector.compile(selector.toString());
+            } catch (MonkeyViewException e) {
+                return new MonkeyCommandReturn(false, e.getMessage());
+            }
             if (node == null) {
-                return;
+                return new MonkeyCommandReturn(false, NO_ACCESSIBILITY_EVENT);
             }
-            Rect bounds = new Rect();
-            node.getBoundsInScreen(bounds);
-            jsObj.put("deep", deep);
-            jsObj.put("index", index);
-            jsObj.put("text", node.getText());
-            jsObj.put("resource_id", node.getSourceNodeId());
-            jsObj.put("resource_id_name", node.getViewIdResourceName());
-            jsObj.put("bounds", bounds.toShortString());
-            jsObj.put("class", node.getClassName());
-            jsObj.put("inputType", node.getInputType());
-            jsObj.put("inputType", node.getMaxTextLength());
-            jsObj.put("isEditable", node.isEditable());
-            jsObj.put("isClickable", node.isClickable());
-            jsObj.put("isCheckable", node.isCheckable());
-            jsObj.put("isChecked", node.isChecked());
-            jsObj.put("isVisibleToUser", node.isVisibleToUser());
-            jsObj.put("isAccessibilityFocused", node.isAccessibilityFocused());
-
-            int viewId = AccessibilityNodeInfo.getAccessibilityViewId(node.getSourceNodeId());
-            jsObj.put("windowId", node.getWindowId());
-            jsObj.put("viewId", viewId);
-            JSONArray jsArr = new JSONArray();
-            jsObj.put("childrens", jsArr);
-
-            int childCount = node.getChildCount();
-            for (int i = 0; i < childCount; i++) {
-                AccessibilityNodeInfo child = node.getChild(i);
-                if (child != null) {
-                    JSONObject jsObjChild = new JSONObject();
-                    loopViews(child, deep + 1, i, jsObjChild);
-                    jsArr.put(jsObjChild);
+
+            try {
+                MonkeyViewSnapshot snapshot = MonkeyViewSnapshot.obtain(node);
+                if (snapshot == null) {
+                    return new MonkeyCommandReturn(false, NO_NODE);
+                }
+                return returnMatches(snapshot, compiled.find(snapshot), json);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return new MonkeyCommandReturn(false, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A command that finds the nodes of the active window matching a selector,
+     * short for queryview find.
+     */
+    public static class FindCommand implements MonkeyCommand {
+        // find [json] [selector]
+        // find //*[@resource-id='com.xxx.xxxx:id/title']
+        // find json (//*[contains(@text, 'Settings')])[1]
+        public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
+            if (command.size() < 2) {
+                return EARG;
+            }
+            AccessibilityNodeInfo node = sUiTestAutomationBridge.getRootInActiveWindow();
+            if (node == null) {
+                reconnect();
+                node = sUiTestAutomationBridge.getRootInActiveWindow();
+            }
+            if (node == null) {
+                return new MonkeyCommandReturn(false, NO_NODE);
+            }
+            return COMMAND_MAP.get("find").query(node, command.subList(1, command.size()));
+        }
+    }
+
+    /**
+     * A command that waits on the device until a selector matches a node of the
+     * active window, or until it no longer matches. The selector is evaluated
+     * once right away and then again whenever an accessibility event arrives,
+     * never by polling. Meanwhile the command goes on as a {@link Continuation}
+     * with the session parked, so its later commands run once this one
+     * answered, but the worker is free for other clients.
+     * <p>
+     * Besides the selector, the nodes found may have to be enabled, disabled,
+     * checked, unchecked or have a given text. On success the matches are
+     * returned like find returns them; gone returns nothing. If the timeout
+     * runs out first, an error is returned.
+     */
+    public static class WaitForCommand implements MonkeyCommand {
+        // waitfor [json] [gone] [enabled|disabled|checked|unchecked] [text value] [timeout (ms)] [selector]
+        // waitfor 5000 //*[@text='OK']
+        // waitfor gone 10000 //*[@resource-id='com.xxx.xxxx:id/progress']
+        // waitfor enabled 3000 //Button[@text='Next']
+        // waitfor text "Done" 20000 //*[@resource-id='com.xxx.xxxx:id/status']
+        public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
+            boolean json = false;
+            boolean gone = false;
+            int requiredFlag = 0;
+            boolean requiredValue = false;
+            String text = null;
+            long timeout = -1;
+            int i = 1;
+            try {
+                for (; timeout < 0; i++) {
+                    String arg = command.get(i);
+                    if ("json".equals(arg)) {
+                        json = true;
+                    } else if ("gone".equals(arg)) {
+                        gone = true;
+                    } else if ("enabled".equals(arg) || "disabled".equals(arg)) {
+                        requiredFlag = MonkeyViewSnapshot.FLAG_ENABLED;
+                        requiredValue = "enabled".equals(arg);
+                    } else if ("checked".equals(arg) || "unchecked".equals(arg)) {
+                        requiredFlag = MonkeyViewSnapshot.FLAG_CHECKED;
+                        requiredValue = "checked".equals(arg);
+                    } else if ("text".equals(arg)) {
+                        text = command.get(++i);
+                    } else {
+                        timeout = Long.parseLong(arg);
+                        if (timeout < 0) {
+                            return EARG;
+                        }
+                    }
                 }
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                return EARG;
+            }
+            if (i >= command.size()) {
+                return EARG;
+            }
+            // The selector may have been split at its spaces.
+            StringBuilder selector = new StringBuilder(command.get(i));
+            for (i++; i < command.size(); i++) {
+                selector.append(' ').append(command.get(i));
+            }
+            MonkeySelector compiled;
+            try {
+                compiled = MonkeySelector.compile(selector.toString());
+            } catch (MonkeyViewException e) {
+                return new MonkeyCommandReturn(false, e.getMessage());
+            }
+
+            WaitFor waitFor = new WaitFor(compiled, gone, requiredFlag, requiredValue, text, json,
+                    SystemClock.uptimeMillis() + timeout);
+            MonkeyCommandReturn ret = waitFor.resume(queue);
+            if (ret == null) {
+                queue.getSession().setContinuation(waitFor);
+                return OK;
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * The state of a waitfor between the accessibility events.
+     */
+    private static class WaitFor implements Continuation {
+        private static final String TIMED_OUT = "Timed out";
+
+        private final MonkeySelector selector;
+        private final boolean gone;
+        private final int requiredFlag;
+        private final boolean requiredValue;
+        private final String text;
+        private final boolean json;
+        private final long deadline;
+
+        WaitFor(MonkeySelector selector, boolean gone, int requiredFlag, boolean requiredValue, String text,
+                boolean json, long deadline) {
+            this.selector = selector;
+            this.gone = gone;
+            this.requiredFlag = requiredFlag;
+            this.requiredValue = requiredValue;
+            this.text = text;
+            this.json = json;
+            this.deadline = deadline;
+        }
+
+        public MonkeyCommandReturn resume(CommandQueue queue) {
+            try {
+                // Read before evaluating, so an event arriving meanwhile
+                // isn't missed.
+                long version = getChangeVersion();
+                AccessibilityNodeInfo root = sUiTestAutomationBridge.getRootInActiveWindow();
+                // Without a window, e.g. while one replaces another, wait
+                // for the next one rather than deciding anything.
+                MonkeyViewSnapshot snapshot = root != null ? MonkeyViewSnapshot.obtain(root) : null;
+                if (snapshot != null) {
+                    int[] found = filter(snapshot, selector.find(snapshot), requiredFlag, requiredValue, text);
+                    if (gone && found.length == 0) {
+                        return OK;
+                    } else if (!gone && found.length > 0) {
+                        return returnMatches(snapshot, found, json);
+                    }
+                }
+                if (SystemClock.uptimeMillis() >= deadline) {
+                    return new MonkeyCommandReturn(false, TIMED_OUT);
+                }
+                queue.getSession().park(deadline, version);
+                return null;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return new MonkeyCommandReturn(false, e.getMessage());
             }
         }
+
+        /**
+         * @return the nodes found that are in the required state.
+         */
+        private static int[] filter(MonkeyViewSnapshot snapshot, int[] found, int requiredFlag,
+                boolean requiredValue, String text) {
+            if (requiredFlag == 0 && text == null) {
+                return found;
+            }
+            int count = 0;
+            for (int node : found) {
+                if ((requiredFlag == 0 || snapshot.is(node, requiredFlag) == requiredValue)
+                        && (text == null || text.equals(snapshot.getText(node)))) {
+                    found[count++] = node;
+                }
+            }
+            return Arrays.copyOf(found, count);
+        }
     }
 
     /**
@@ -270,9 +1052,13 @@ public class MonkeySourceNetworkViews {
         // queryview accessibilityids [windowId] [viewId] getchildren
         // queryview accessibilityids 1381 890 gettree text
         // queryview viewid com.xxx.xxxx:id/xxxxx gettree json
+        // queryview handle 3 gettext
         public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
             if (command.size() >= 2) {
                 String idType = command.get(1);
+                if ("handle".equals(idType)) {
+                    return queryHandle(command, queue);
+                }
                 AccessibilityNodeInfo node = null;
                 String viewQuery;
                 List<String> args;
@@ -322,6 +1108,517 @@ public class MonkeySourceNetworkViews {
             }
             return EARG;
         }
+
+        /**
+         * Run the query on the node of a handle, without looking it up.
+         */
+        private MonkeyCommandReturn queryHandle(List<String> command, CommandQueue queue) {
+            if (command.size() < 4) {
+                return EARG;
+            }
+            ViewIntrospectionCommand getter = COMMAND_MAP.get(command.get(3));
+            if (getter == null) {
+                return EARG;
+            }
+            AccessibilityNodeInfo node;
+            try {
+                node = queue.getSession().getNodeHandles().get(Integer.parseInt(command.get(2)));
+            } catch (NumberFormatException e) {
+                return EARG;
+            }
+            if (node == null) {
+                return new MonkeyCommandReturn(false, NO_HANDLE);
+            }
+            return getter.query(node, command.subList(4, command.size()));
+        }
+    }
+
+    /**
+     * A command that returns a handle for a node, to pass to queryview instead
+     * of its ids. The node is kept with the handle until an accessibility event
+     * may have changed it, see {@link MonkeyNodeHandles}, so queries on the
+     * handle don't have to look the node up.
+     */
+    public static class HandleCommand implements MonkeyCommand {
+        // handle [id type] [id(s)]
+        // handle
+        // handle viewid com.xxx.xxxx:id/xxxxx
+        // handle accessibilityids 1381 890
+        // handle release [handle]
+        public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
+            MonkeyNodeHandles handles = queue.getSession().getNodeHandles();
+            String idType = command.size() > 1 ? command.get(1) : null;
+            AccessibilityNodeInfo node;
+            long version = getChangeVersion();
+            try {
+                if ("release".equals(idType) && command.size() == 3) {
+                    return new MonkeyCommandReturn(handles.release(Integer.parseInt(command.get(2))));
+                } else if ("viewid".equals(idType) && command.size() == 3) {
+                    node = getNodeByViewId(command.get(2));
+                } else if ("accessibilityids".equals(idType) && command.size() == 4) {
+                    node = getNodeByAccessibilityIds(command.get(2), command.get(3));
+                } else if (idType == null) {
+                    node = sUiTestAutomationBridge.getRootInActiveWindow();
+                    if (node == null) {
+                        reconnect();
+                        version = getChangeVersion();
+                        node = sUiTestAutomationBridge.getRootInActiveWindow();
+                    }
+                } else {
+                    return EARG;
+                }
+            } catch (NumberFormatException e) {
+                return EARG;
+            } catch (MonkeyViewException e) {
+                return new MonkeyCommandReturn(false, e.getMessage());
+            }
+            if (node == null) {
+                return new MonkeyCommandReturn(false, NO_NODE);
+            }
+            return new MonkeyCommandReturn(true, Integer.toString(handles.add(node, version)));
+        }
+    }
+
+    /**
+     * A node a selector matched, looked for in all windows.
+     */
+    private static class Target {
+        final MonkeyViewSnapshot snapshot;
+        final int node;
+        // The part of the node inside its window.
+        final int left;
+        final int top;
+        final int right;
+        final int bottom;
+
+        private Target(MonkeyViewSnapshot snapshot, int node) {
+            this.snapshot = snapshot;
+            this.node = node;
+            left = Math.max(snapshot.getLeft(node), snapshot.getLeft(0));
+            top = Math.max(snapshot.getTop(node), snapshot.getTop(0));
+            right = Math.min(snapshot.getRight(node), snapshot.getRight(0));
+            bottom = Math.min(snapshot.getBottom(node), snapshot.getBottom(0));
+        }
+
+        boolean isVisible() {
+            return snapshot.is(node, MonkeyViewSnapshot.FLAG_VISIBLE_TO_USER) && left < right && top < bottom;
+        }
+
+        int centerX() {
+            return (left + right) / 2;
+        }
+
+        int centerY() {
+            return (top + bottom) / 2;
+        }
+
+        /**
+         * Find the first node a selector matches, preferring one that can be
+         * seen. The windows are searched from the top layer down.
+         *
+         * @return the node, or null if the selector matches none.
+         */
+        static Target find(MonkeySelector selector) {
+            Target hidden = null;
+            for (MonkeyViewSnapshot snapshot : getWindowSnapshots()) {
+                for (int node : selector.find(snapshot)) {
+                    Target target = new Target(snapshot, node);
+                    if (target.isVisible()) {
+                        return target;
+                    } else if (hidden == null) {
+                        hidden = target;
+                    }
+                }
+            }
+            return hidden;
+        }
+    }
+
+    private static final String NO_MATCH = "No node matches the selector";
+    private static final String NOT_VISIBLE = "Node is not visible";
+
+    /**
+     * Compile a selector that may have been split at its spaces.
+     */
+    private static MonkeySelector compileSelector(List<String> words) throws MonkeyViewException {
+        StringBuilder selector = new StringBuilder(words.get(0));
+        for (int i = 1; i < words.size(); i++) {
+            selector.append(' ').append(words.get(i));
+        }
+        return MonkeySelector.compile(selector.toString());
+    }
+
+    /**
+     * A command that taps the center of the first node a selector matches, in
+     * any window, in one request instead of looking the node up, getting its
+     * location and tapping it from the client. Only the part of the node
+     * inside its window counts. Returns the node like find does.
+     */
+    public static class ClickOnCommand implements MonkeyCommand {
+        // How long a long click holds the touch down.
+        private static final long LONG_CLICK_MILLIS = 1000;
+
+        private final boolean longClick;
+
+        public ClickOnCommand(boolean longClick) {
+            this.longClick = longClick;
+        }
+
+        // clickon [selector]
+        // clickon //*[@text='确定']
+        // longclickon //*[@resource-id='com.xxx.xxxx:id/item'][1]
+        public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
+            if (command.size() < 2) {
+                return EARG;
+            }
+            Target target;
+            try {
+                target = Target.find(compileSelector(command.subList(1, command.size())));
+            } catch (MonkeyViewException e) {
+                return new MonkeyCommandReturn(false, e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+                return new MonkeyCommandReturn(false, e.getMessage());
+            }
+            if (target == null) {
+                return new MonkeyCommandReturn(false, NO_MATCH);
+            } else if (!target.isVisible()) {
+                return new MonkeyCommandReturn(false, NOT_VISIBLE);
+            }
+            int x = target.centerX();
+            int y = target.centerY();
+            long downTime = SystemClock.uptimeMillis();
+            queue.enqueueEvent(new MonkeyTouchEvent(MotionEvent.ACTION_DOWN).addPointer(0, x, y).setDownTime(downTime));
+            queue.enqueueEvent(new MonkeyThrottleEvent(longClick ? LONG_CLICK_MILLIS : 100));
+            queue.enqueueEvent(new MonkeyTouchEvent(MotionEvent.ACTION_UP).addPointer(0, x, y).setDownTime(downTime));
+            return returnMatches(target.snapshot, new int[] { target.node }, false);
+        }
+    }
+
+    /**
+     * A command that sets the text of the first node a selector matches, in
+     * any window. The text is set through the accessibility action rather than
+     * typed, so any text works, Chinese included, and what was there before is
+     * replaced.
+     */
+    public static class SetTextOnCommand implements MonkeyCommand {
+        // settexton [selector] [text]
+        // settexton //EditText[@resource-id='com.xxx.xxxx:id/name'] "张三"
+        public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
+            if (command.size() < 3) {
+                return EARG;
+            }
+            String text = command.get(command.size() - 1);
+            try {
+                Target target = Target.find(compileSelector(command.subList(1, command.size() - 1)));
+                if (target == null) {
+                    return new MonkeyCommandReturn(false, NO_MATCH);
+                }
+                MonkeyViewSnapshot snapshot = target.snapshot;
+                if (!snapshot.is(target.node, MonkeyViewSnapshot.FLAG_EDITABLE)) {
+                    return new MonkeyCommandReturn(false, "Node is not editable");
+                }
+                int connectionId = sUiTestAutomationBridge.getConnectionId();
+                AccessibilityNodeInfo node = AccessibilityInteractionClient.getInstance()
+                        .findAccessibilityNodeInfoByAccessibilityId(connectionId, snapshot.getWindowId(target.node),
+                                snapshot.getSourceNodeId(target.node), false, 0, null);
+                if (node == null) {
+                    return new MonkeyCommandReturn(false, NO_NODE);
+                }
+                Bundle arguments = new Bundle();
+                arguments.putCharSequence(AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE, text);
+                if (!node.performAction(AccessibilityNodeInfo.ACTION_SET_TEXT, arguments)) {
+                    return new MonkeyCommandReturn(false, "Failed to set the text");
+                }
+                return returnMatches(snapshot, new int[] { target.node }, false);
+            } catch (MonkeyViewException e) {
+                return new MonkeyCommandReturn(false, e.getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+                return new MonkeyCommandReturn(false, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A command that scrolls until the first node a selector matches can be
+     * seen, then returns it like find does. Each round swipes up the largest
+     * scrollable node of the topmost window having one, waits for the UI to
+     * settle and looks again. It gives up after the given number of swipes,
+     * 10 by default, or once a swipe left the children of the scrolled node
+     * where they were, as the end of the list has been reached.
+     * <p>
+     * The swipes are queued like those of touch, and the command goes on as a
+     * {@link Continuation} once the main loop injected them. While the UI
+     * settles the session is parked.
+     */
+    public static class ScrollToCommand implements MonkeyCommand {
+        private static final int DEFAULT_MAX_SWIPES = 10;
+
+        // scrollto [selector] [max swipes]
+        // scrollto //*[@text='关于手机']
+        // scrollto //*[@text='开发者选项'] 20
+        public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
+            if (command.size() < 2) {
+                return EARG;
+            }
+            int maxSwipes = DEFAULT_MAX_SWIPES;
+            List<String> words = command.subList(1, command.size());
+            if (words.size() > 1 && MonkeyCommandLine.isInt(command, command.size() - 1)) {
+                maxSwipes = MonkeyCommandLine.getInt(command, command.size() - 1);
+                words = words.subList(0, words.size() - 1);
+                if (maxSwipes < 0) {
+                    return EARG;
+                }
+            }
+            MonkeySelector selector;
+            try {
+                selector = compileSelector(words);
+            } catch (MonkeyViewException e) {
+                return new MonkeyCommandReturn(false, e.getMessage());
+            }
+            ScrollTo scrollTo = new ScrollTo(selector, maxSwipes);
+            MonkeyCommandReturn ret = scrollTo.resume(queue);
+            if (ret == null) {
+                queue.getSession().setContinuation(scrollTo);
+                return OK;
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * The state of a scrollto between its swipes.
+     */
+    private static class ScrollTo implements Continuation {
+        private static final int SWIPE_STEPS = 10;
+        private static final long SWIPE_STEP_MILLIS = 20;
+        // How long no accessibility event may arrive after a swipe for the
+        // UI to count as settled, and how long to wait for that at most.
+        private static final long QUIET_MILLIS = 300;
+        private static final long SETTLE_TIMEOUT_MILLIS = 3000;
+
+        private final MonkeySelector selector;
+        private final int maxSwipes;
+        private int swipes;
+        // The node swiped last, and the ids and bounds of its children
+        // before the swipe.
+        private int windowId;
+        private long containerId;
+        private long[] children;
+        // The uptime the UI started settling after the last swipe, 0 before.
+        private long settleSince;
+
+        ScrollTo(MonkeySelector selector, int maxSwipes) {
+            this.selector = selector;
+            this.maxSwipes = maxSwipes;
+        }
+
+        public MonkeyCommandReturn resume(CommandQueue queue) {
+            try {
+                if (swipes > 0) {
+                    long now = SystemClock.uptimeMillis();
+                    if (settleSince == 0) {
+                        settleSince = now;
+                    }
+                    // Still moving after the timeout is looked at as it is.
+                    long idle = getIdleTime(settleSince, QUIET_MILLIS);
+                    long settleDeadline = settleSince + SETTLE_TIMEOUT_MILLIS;
+                    if (now < idle && now < settleDeadline) {
+                        queue.getSession().park(Math.min(idle, settleDeadline), -1);
+                        return null;
+                    }
+                }
+                Target target = Target.find(selector);
+                if (target != null && target.isVisible()) {
+                    return returnMatches(target.snapshot, new int[] { target.node }, false);
+                }
+                if (swipes == maxSwipes || (swipes > 0 && Arrays.equals(children, findChildren()))) {
+                    return new MonkeyCommandReturn(false, NO_MATCH);
+                }
+                Target container = findScrollable();
+                if (container == null) {
+                    return new MonkeyCommandReturn(false, "No scrollable node");
+                }
+                windowId = container.snapshot.getWindowId(container.node);
+                containerId = container.snapshot.getSourceNodeId(container.node);
+                children = getChildren(container.snapshot, container.node);
+                swipeUp(container, queue);
+                swipes++;
+                settleSince = 0;
+                return null;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return new MonkeyCommandReturn(false, e.getMessage());
+            }
+        }
+
+        /**
+         * @return the children of the node swiped last as they are now, or
+         *         null if it is gone.
+         */
+        private long[] findChildren() {
+            for (MonkeyViewSnapshot snapshot : getWindowSnapshots()) {
+                if (snapshot.getWindowId(0) == windowId) {
+                    int node = snapshot.indexOf(containerId);
+                    if (node >= 0) {
+                        return getChildren(snapshot, node);
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the source node id and bounds of each child of a node.
+         */
+        private static long[] getChildren(MonkeyViewSnapshot snapshot, int node) {
+            int count = 0;
+            for (int i = node + 1; i < snapshot.getSubtreeEnd(node); i = snapshot.getSubtreeEnd(i)) {
+                count++;
+            }
+            long[] children = new long[count * 5];
+            int k = 0;
+            for (int i = node + 1; i < snapshot.getSubtreeEnd(node); i = snapshot.getSubtreeEnd(i)) {
+                children[k++] = snapshot.getSourceNodeId(i);
+                children[k++] = snapshot.getLeft(i);
+                children[k++] = snapshot.getTop(i);
+                children[k++] = snapshot.getRight(i);
+                children[k++] = snapshot.getBottom(i);
+            }
+            return children;
+        }
+
+        /**
+         * @return the visible scrollable node with the largest area in the
+         *         topmost window having one, or null.
+         */
+        private static Target findScrollable() {
+            for (MonkeyViewSnapshot snapshot : getWindowSnapshots()) {
+                Target largest = null;
+                for (int i = 0; i < snapshot.size(); i++) {
+                    if (!snapshot.is(i, MonkeyViewSnapshot.FLAG_SCROLLABLE)) {
+                        continue;
+                    }
+                    Target target = new Target(snapshot, i);
+                    if (target.isVisible() && (largest == null || area(target) > area(largest))) {
+                        largest = target;
+                    }
+                }
+                if (largest != null) {
+                    return largest;
+                }
+            }
+            return null;
+        }
+
+        private static long area(Target target) {
+            return (long) (target.right - target.left) * (target.bottom - target.top);
+        }
+
+        /**
+         * Queue a drag from the lower quarter of the node to its upper
+         * quarter, showing what follows.
+         */
+        private static void swipeUp(Target container, CommandQueue queue) {
+            int x = container.centerX();
+            int height = container.bottom - container.top;
+            int fromY = container.bottom - height / 4;
+            int toY = container.top + height / 4;
+            long downTime = SystemClock.uptimeMillis();
+            queue.enqueueEvent(new MonkeyTouchEvent(MotionEvent.ACTION_DOWN).addPointer(0, x, fromY)
+                    .setDownTime(downTime));
+            for (int step = 1; step <= SWIPE_STEPS; step++) {
+                queue.enqueueEvent(new MonkeyThrottleEvent(SWIPE_STEP_MILLIS));
+                int y = fromY + (toY - fromY) * step / SWIPE_STEPS;
+                queue.enqueueEvent(new MonkeyTouchEvent(MotionEvent.ACTION_MOVE).addPointer(0, x, y)
+                        .setDownTime(downTime));
+            }
+            // Hold still a moment, so the list stops rather than flings.
+            queue.enqueueEvent(new MonkeyThrottleEvent(SWIPE_STEP_MILLIS * 5));
+            queue.enqueueEvent(new MonkeyTouchEvent(MotionEvent.ACTION_UP).addPointer(0, x, toY)
+                    .setDownTime(downTime));
+        }
+    }
+
+    /**
+     * A command that returns the topmost visible node at a point, across all
+     * windows: the windows are tried from the top layer down, and within a
+     * window the node drawn last wins. The node is returned like find returns
+     * its matches. Lookups go through the {@link MonkeySpatialIndex} of the
+     * cached window snapshots, which are refreshed as events arrive.
+     */
+    public static class NodeAtCommand implements MonkeyCommand {
+        // nodeat [json] [x] [y]
+        // nodeat 540 1200
+        // nodeat json 540 1200
+        public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
+            boolean json = command.size() == 4 && "json".equals(command.get(1));
+            if (command.size() != (json ? 4 : 3)) {
+                return EARG;
+            }
+            int x;
+            int y;
+            try {
+                x = Integer.parseInt(command.get(command.size() - 2));
+                y = Integer.parseInt(command.get(command.size() - 1));
+            } catch (NumberFormatException e) {
+                return EARG;
+            }
+            try {
+                for (MonkeyViewSnapshot snapshot : getWindowSnapshots()) {
+                    int node = snapshot.getSpatialIndex().nodeAt(x, y);
+                    if (node >= 0) {
+                        return returnMatches(snapshot, new int[] { node }, json);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                return new MonkeyCommandReturn(false, e.getMessage());
+            }
+            return new MonkeyCommandReturn(false, NO_NODE);
+        }
+    }
+
+    /**
+     * A command that returns the visible nodes whose bounds lie inside a
+     * rectangle, window by window from the top layer down and in pre-order
+     * within a window, like find returns its matches.
+     */
+    public static class NodesInCommand implements MonkeyCommand {
+        // nodesin [json] [left] [top] [right] [bottom]
+        // nodesin 0 0 1080 300
+        public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
+            boolean json = command.size() == 6 && "json".equals(command.get(1));
+            if (command.size() != (json ? 6 : 5)) {
+                return EARG;
+            }
+            int[] rect = new int[4];
+            try {
+                for (int i = 0; i < 4; i++) {
+                    rect[i] = Integer.parseInt(command.get(command.size() - 4 + i));
+                }
+            } catch (NumberFormatException e) {
+                return EARG;
+            }
+            try {
+                MonkeyResponseBuffer out = MonkeyResponseBuffer.get();
+                if (json) {
+                    out.beginArray();
+                }
+                for (MonkeyViewSnapshot snapshot : getWindowSnapshots()) {
+                    appendMatches(out, snapshot,
+                            snapshot.getSpatialIndex().nodesIn(rect[0], rect[1], rect[2], rect[3]), json);
+                }
+                if (json) {
+                    out.endArray();
+                }
+                return out.toReturn();
+            } catch (Exception e) {
+                e.printStackTrace();
+                return new MonkeyCommandReturn(false, e.getMessage());
+            }
+        }
     }
 
     /**
@@ -335,59 +1632,192 @@ public class MonkeySourceNetworkViews {
         }
     }
 
+    /**
+     * A command that waits until the UI settled, that is until no accessibility
+     * event arrived for the given quiet time, counted from when the command
+     * started at the earliest. Returns how long it waited, or an error if the
+     * timeout ran out first.
+     */
+    public static class WaitIdleCommand implements MonkeyCommand {
+        // waitidle [quiet (ms)] [timeout (ms)]
+        // waitidle 300 5000
+        public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
+            if (command.size() != 3) {
+                return EARG;
+            }
+            long quiet;
+            long timeout;
+            try {
+                quiet = Long.parseLong(command.get(1));
+                timeout = Long.parseLong(command.get(2));
+            } catch (NumberFormatException e) {
+                return EARG;
+            }
+            if (quiet < 0 || timeout < 0) {
+                return EARG;
+            }
+            // The events of the preceding commands have been injected by now.
+            WaitIdle waitIdle = new WaitIdle(SystemClock.uptimeMillis(), quiet, timeout);
+            MonkeyCommandReturn ret = waitIdle.resume(queue);
+            if (ret == null) {
+                queue.getSession().setContinuation(waitIdle);
+                return OK;
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * The state of a waitidle while the session is parked.
+     */
+    private static class WaitIdle implements Continuation {
+        private final long start;
+        private final long quiet;
+        private final long deadline;
+
+        WaitIdle(long start, long quiet, long timeout) {
+            this.start = start;
+            this.quiet = quiet;
+            this.deadline = start + timeout;
+        }
+
+        public MonkeyCommandReturn resume(CommandQueue queue) {
+            long now = SystemClock.uptimeMillis();
+            long idle = getIdleTime(start, quiet);
+            if (now >= idle) {
+                return new MonkeyCommandReturn(true, Long.toString(now - start));
+            } else if (now >= deadline) {
+                return new MonkeyCommandReturn(false, "Timed out");
+            }
+            // Events arriving meanwhile move the idle time on, it is checked
+            // again then.
+            queue.getSession().park(Math.min(idle, deadline), -1);
+            return null;
+        }
+    }
+
     public static class GetIsChangeCommand implements MonkeyCommand {
         // getrootview
         public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
-
-            String res = String.valueOf(hasStateChange);
-            hasStateChange = false;
+            String res = String.valueOf(queue.getSession().consumeViewChange());
             return new MonkeyCommandReturn(true, res);
         }
     }
 
     /**
-     * A command that returns the accessibility ids of the views that contain the
-     * given text. It takes a string of text and returns the accessibility ids of
-     * the nodes that contain the text as a list of integers separated by spaces.
+     * A command that returns the accessibility ids of the views showing the
+     * given text, in all windows. It takes a string of text and returns the
+     * accessibility ids of the nodes whose text or content description matches
+     * it as a list of integers separated by spaces, the best match first.
+     * <p>
+     * By default the text only has to be contained, ignoring case; see
+     * {@link MonkeyTextIndex} for the other ways to match. The nodes are
+     * looked up in the text indexes of the cached window snapshots, not with a
+     * binder call per lookup.
      */
     public static class GetViewsWithTextCommand implements MonkeyCommand {
-        // getviewswithtext [text]
+        // getviewswithtext [exact|prefix|contains|regex|fuzzy] [json] [text]
         // getviewswithtext "some text here"
+        // getviewswithtext prefix 设置
+        // getviewswithtext regex json "^\d+ 项$"
         public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
-            if (command.size() == 2) {
-                String text = command.get(1);
-                int connectionId = sUiTestAutomationBridge.getConnectionId();
-                List<AccessibilityNodeInfo> nodes = AccessibilityInteractionClient.getInstance()
-                        .findAccessibilityNodeInfosByText(connectionId, AccessibilityWindowInfo.ACTIVE_WINDOW_ID,
-                                AccessibilityNodeInfo.ROOT_NODE_ID, text);
-                ViewIntrospectionCommand idGetter = new GetAccessibilityIds();
-                List<String> emptyArgs = new ArrayList<String>();
-                StringBuilder ids = new StringBuilder();
-                for (AccessibilityNodeInfo node : nodes) {
-                    MonkeyCommandReturn result = idGetter.query(node, emptyArgs);
-                    if (!result.wasSuccessful()) {
-                        return result;
-                    }
-                    ids.append(result.getMessage()).append(" ");
+            if (command.size() < 2) {
+                return EARG;
+            }
+            int mode = MonkeyTextIndex.CONTAINS;
+            boolean json = false;
+            int i = 1;
+            for (; i < command.size() - 1; i++) {
+                String arg = command.get(i);
+                if ("json".equals(arg)) {
+                    json = true;
+                } else if (MonkeyTextIndex.mode(arg) >= 0) {
+                    mode = MonkeyTextIndex.mode(arg);
+                } else {
+                    return EARG;
                 }
-                return new MonkeyCommandReturn(true, ids.toString());
             }
-            return EARG;
+            MonkeyTextIndex.Query query;
+            try {
+                query = MonkeyTextIndex.Query.compile(mode, command.get(i));
+            } catch (MonkeyViewException e) {
+                return new MonkeyCommandReturn(false, e.getMessage());
+            }
+            List<MonkeyTextIndex.Match> matches = new ArrayList<MonkeyTextIndex.Match>();
+            try {
+                for (MonkeyViewSnapshot snapshot : getWindowSnapshots()) {
+                    snapshot.getTextIndex().find(query, matches);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                return new MonkeyCommandReturn(false, e.getMessage());
+            }
+            // Stable, so upper windows stay first among equal matches.
+            Collections.sort(matches, MonkeyTextIndex.RANKING);
+
+            MonkeyResponseBuffer out = MonkeyResponseBuffer.get();
+            if (json) {
+                out.beginArray();
+                for (MonkeyTextIndex.Match match : matches) {
+                    MonkeyViewSnapshot snapshot = match.snapshot;
+                    out.beginObject();
+                    out.field("resource_id", snapshot.getSourceNodeId(match.node));
+                    out.field("windowId", snapshot.getWindowId(match.node));
+                    out.field("viewId", snapshot.getViewId(match.node));
+                    out.field("bounds", snapshot.getBoundsString(match.node));
+                    out.field("text", match.text);
+                    out.field("score", match.score);
+                    out.endObject();
+                }
+                out.endArray();
+                return out.toReturn();
+            }
+            for (MonkeyTextIndex.Match match : matches) {
+                out.append(match.snapshot.getWindowId(match.node)).append(" ")
+                        .append(match.snapshot.getViewId(match.node)).append(" ");
+            }
+            return out.toReturn();
         }
     }
 
     public static class TakeScreenshot implements MonkeyCommand {
-        // takescreenshot [scale|rect|getcolor|quality]
+
+        /**
+         * A ByteArrayOutputStream that hands out its buffer instead of a copy.
+         */
+        private static class ImageBuffer extends ByteArrayOutputStream {
+            ImageBuffer() {
+                super(64 * 1024);
+            }
+
+            byte[] getBuffer() {
+                return buf;
+            }
+        }
+
+        // Compressed images are written into a buffer kept per worker thread,
+        // the connection sends the response before the thread takes another
+        // screenshot.
+        private static final ThreadLocal<ImageBuffer> IMAGE_BUFFER = new ThreadLocal<ImageBuffer>() {
+            @Override
+            protected ImageBuffer initialValue() {
+                return new ImageBuffer();
+            }
+        };
+
+        // takescreenshot [scale|rect|getcolor|quality|binary]
         // takescreenshot scale 0.3
         // takescreenshot rect 30 30 50 50
         // takescreenshot getcolor 300 330
         // takescreenshot getcolor 300 330 quality 90
+        // takescreenshot scale 0.5 binary
         public MonkeyCommandReturn translateCommand(List<String> command, CommandQueue queue) {
             Rect rect = new Rect();
             float scale = 1;
             int quality = 80;
             int x = -1;
             int y = -1;
+            boolean binary = false;
             try {
                 for (int i = 0; i < command.size(); i++) {
                     String arg = command.get(i);
@@ -401,6 +1831,8 @@ public class MonkeySourceNetworkViews {
                         y = Integer.parseInt(command.get(++i));
                     } else if ("quality".equals(arg)) {
                         quality = Integer.parseInt(command.get(++i));
+                    } else if ("binary".equals(arg)) {
+                        binary = true;
                     }
                 }
 
@@ -436,9 +1868,16 @@ public class MonkeySourceNetworkViews {
                 if (scale != 1) {
                     bitmap = scaleBitmap(bitmap, scale);
                 }
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ImageBuffer out = IMAGE_BUFFER.get();
+                out.reset();
                 bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
-                String base64 = Base64.encodeToString(out.toByteArray(), Base64.DEFAULT);
+                bitmap.recycle();
+
+                // takescreenshot binary
+                if (binary) {
+                    return new MonkeyCommandReturn(out.getBuffer(), out.size());
+                }
+                String base64 = Base64.encodeToString(out.getBuffer(), 0, out.size(), Base64.DEFAULT);
 
                 return new MonkeyCommandReturn(true, base64);
             } catch (Exception e) {
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2011, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.Arrays;
+
+/**
+ * A grid over the visible nodes of a snapshot, telling which nodes are at a
+ * point or inside a rectangle without going through all nodes.
+ * <p>
+ * The area covered by the nodes is cut into square cells, and each cell lists
+ * the nodes overlapping it in pre-order. A lookup only goes through the nodes
+ * of the cells it touches. Nodes later in pre-order are drawn over earlier
+ * ones, children over their parents and later siblings over earlier ones, so
+ * the topmost node at a point is the last one containing it.
+ * <p>
+ * Snapshots are immutable, so an index stays valid as long as its snapshot;
+ * get it with {@link MonkeyViewSnapshot#getSpatialIndex()}, which builds it
+ * once per snapshot.
+ */
+public class MonkeySpatialIndex {
+    private static final int MIN_CELL_SIZE = 32;
+    // At most this many cells along the longer side.
+    private static final int MAX_CELLS = 64;
+
+    private final MonkeyViewSnapshot snapshot;
+    private final int left;
+    private final int top;
+    private final int cellSize;
+    private final int columns;
+    private final int rows;
+    // The nodes of cell c are cellNodes[cellStarts[c]] up to
+    // cellNodes[cellStarts[c + 1]].
+    private final int[] cellStarts;
+    private final int[] cellNodes;
+
+    MonkeySpatialIndex(MonkeyViewSnapshot snapshot) {
+        this.snapshot = snapshot;
+        int size = snapshot.size();
+        int l = Integer.MAX_VALUE;
+        int t = Integer.MAX_VALUE;
+        int r = Integer.MIN_VALUE;
+        int b = Integer.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            if (indexes(i)) {
+                l = Math.min(l, snapshot.getLeft(i));
+                t = Math.min(t, snapshot.getTop(i));
+                r = Math.max(r, snapshot.getRight(i));
+                b = Math.max(b, snapshot.getBottom(i));
+            }
+        }
+        if (l > r) {
+            left = top = 0;
+            cellSize = MIN_CELL_SIZE;
+            columns = rows = 0;
+            cellStarts = new int[1];
+            cellNodes = new int[0];
+            return;
+        }
+        left = l;
+        top = t;
+        cellSize = Math.max(MIN_CELL_SIZE, (Math.max(r - l, b - t) + MAX_CELLS - 1) / MAX_CELLS);
+        columns = (r - l + cellSize - 1) / cellSize;
+        rows = (b - t + cellSize - 1) / cellSize;
+
+        // Count the nodes per cell first, then fill them in.
+        cellStarts = new int[columns * rows + 1];
+        for (int i = 0; i < size; i++) {
+            if (indexes(i)) {
+                for (int y = row(snapshot.getTop(i)); y <= row(snapshot.getBottom(i) - 1); y++) {
+                    for (int x = column(snapshot.getLeft(i)); x <= column(snapshot.getRight(i) - 1); x++) {
+                        cellStarts[y * columns + x + 1]++;
+                    }
+                }
+            }
+        }
+        for (int c = 0; c < columns * rows; c++) {
+            cellStarts[c + 1] += cellStarts[c];
+        }
+        cellNodes = new int[cellStarts[columns * rows]];
+        int[] filled = Arrays.copyOf(cellStarts, columns * rows);
+        for (int i = 0; i < size; i++) {
+            if (indexes(i)) {
+                for (int y = row(snapshot.getTop(i)); y <= row(snapshot.getBottom(i) - 1); y++) {
+                    for (int x = column(snapshot.getLeft(i)); x <= column(snapshot.getRight(i) - 1); x++) {
+                        cellNodes[filled[y * columns + x]++] = i;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Only nodes that can be seen and have an area are indexed.
+     */
+    private boolean indexes(int i) {
+        return snapshot.is(i, MonkeyViewSnapshot.FLAG_VISIBLE_TO_USER) && snapshot.getLeft(i) < snapshot.getRight(i)
+                && snapshot.getTop(i) < snapshot.getBottom(i);
+    }
+
+    private int column(int x) {
+        return Math.min(Math.max((x - left) / cellSize, 0), columns - 1);
+    }
+
+    private int row(int y) {
+        return Math.min(Math.max((y - top) / cellSize, 0), rows - 1);
+    }
+
+    /**
+     * @return the snapshot indexed.
+     */
+    public MonkeyViewSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return the topmost visible node whose bounds contain the point, or -1
+     *         if there is none.
+     */
+    public int nodeAt(int x, int y) {
+        if (x < left || y < top || x >= left + columns * cellSize || y >= top + rows * cellSize) {
+            return -1;
+        }
+        int c = row(y) * columns + column(x);
+        for (int k = cellStarts[c + 1] - 1; k >= cellStarts[c]; k--) {
+            int i = cellNodes[k];
+            if (snapshot.getLeft(i) <= x && x < snapshot.getRight(i) && snapshot.getTop(i) <= y
+                    && y < snapshot.getBottom(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the visible nodes whose bounds lie inside the rectangle, in
+     *         pre-order.
+     */
+    public int[] nodesIn(int l, int t, int r, int b) {
+        if (columns == 0 || l >= r || t >= b) {
+            return new int[0];
+        }
+        int[] found = new int[16];
+        int count = 0;
+        for (int y = row(t); y <= row(b - 1); y++) {
+            for (int x = column(l); x <= column(r - 1); x++) {
+                int c = y * columns + x;
+                for (int k = cellStarts[c]; k < cellStarts[c + 1]; k++) {
+                    int i = cellNodes[k];
+                    // A node is listed in every cell it overlaps; only take it
+                    // in the cell of its top left corner.
+                    if (column(snapshot.getLeft(i)) != x || row(snapshot.getTop(i)) != y) {
+                        continue;
+                    }
+                    if (l <= snapshot.getLeft(i) && snapshot.getRight(i) <= r && t <= snapshot.getTop(i)
+                            && snapshot.getBottom(i) <= b) {
+                        if (count == found.length) {
+                            found = Arrays.copyOf(found, count * 2);
+                        }
+                        found[count++] = i;
+                    }
+                }
+            }
+        }
+        found = Arrays.copyOf(found, count);
+        Arrays.sort(found);
+        return found;
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2011, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * An index finding the nodes of a snapshot by their text or content
+ * description.
+ * <p>
+ * The terms of the index are the distinct strings the nodes show, each with
+ * the nodes showing it. Lookups compare the query with the terms rather than
+ * with every node, ignoring case except for {@link #EXACT}:
+ * <ul>
+ * <li>{@link #EXACT} and {@link #PREFIX} binary search the terms sorted.</li>
+ * <li>{@link #CONTAINS} only checks the terms containing the rarest pair of
+ * adjacent characters of the query. Pairs rather than words, as labels in
+ * languages like Chinese have no spaces.</li>
+ * <li>{@link #FUZZY} finds the terms at most a few edits away from the query,
+ * only checking the terms that share enough character pairs with it.</li>
+ * <li>{@link #REGEX} has to try every term.</li>
+ * </ul>
+ * Matches are ranked: the closer a term is to the query, the better.
+ * <p>
+ * Snapshots are immutable, so an index stays valid as long as its snapshot;
+ * get it with {@link MonkeyViewSnapshot#getTextIndex()}, which builds it once
+ * per snapshot.
+ */
+public class MonkeyTextIndex {
+    public static final int EXACT = 0;
+    public static final int PREFIX = 1;
+    public static final int CONTAINS = 2;
+    public static final int REGEX = 3;
+    public static final int FUZZY = 4;
+
+    private static final String[] MODE_NAMES = { "exact", "prefix", "contains", "regex", "fuzzy" };
+
+    /**
+     * What to look for, prepared once for all the snapshots searched.
+     */
+    public static class Query {
+        final int mode;
+        final String text;
+        final String lowerText;
+        final Pattern pattern;
+        // The distinct pairs of adjacent characters of lowerText.
+        final int[] grams;
+        // How many edits FUZZY allows.
+        final int maxDistance;
+
+        private Query(int mode, String text) throws MonkeyViewException {
+            this.mode = mode;
+            this.text = text;
+            this.lowerText = text.toLowerCase(Locale.ROOT);
+            try {
+                this.pattern = mode == REGEX ? Pattern.compile(text) : null;
+            } catch (PatternSyntaxException e) {
+                throw new MonkeyViewException(e.getMessage());
+            }
+            this.grams = grams(lowerText);
+            int length = lowerText.length();
+            this.maxDistance = length < 3 ? 0 : Math.max(1, length / 4);
+        }
+
+        /**
+         * @param mode one of EXACT, PREFIX, CONTAINS, REGEX or FUZZY.
+         */
+        public static Query compile(int mode, String text) throws MonkeyViewException {
+            return new Query(mode, text);
+        }
+    }
+
+    /**
+     * A node found, with how well it matched: the lower the score, the better.
+     */
+    public static class Match {
+        public final MonkeyViewSnapshot snapshot;
+        public final int node;
+        // The text or content description that matched.
+        public final String text;
+        public final int score;
+
+        Match(MonkeyViewSnapshot snapshot, int node, String text, int score) {
+            this.snapshot = snapshot;
+            this.node = node;
+            this.text = text;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Orders the best match first, and shorter texts before longer ones that
+     * match as well.
+     */
+    public static final Comparator<Match> RANKING = new Comparator<Match>() {
+        @Override
+        public int compare(Match a, Match b) {
+            if (a.score != b.score) {
+                return Integer.compare(a.score, b.score);
+            }
+            return Integer.compare(a.text.length(), b.text.length());
+        }
+    };
+
+    // The terms containing a pair of characters, in order.
+    private static class TermList {
+        int[] terms = new int[4];
+        int size;
+
+        void add(int term) {
+            if (size > 0 && terms[size - 1] == term) {
+                return;
+            }
+            if (size == terms.length) {
+                terms = Arrays.copyOf(terms, size * 2);
+            }
+            terms[size++] = term;
+        }
+    }
+
+    private final MonkeyViewSnapshot snapshot;
+    private final String[] terms;
+    private final String[] lowerTerms;
+    // The nodes showing term t are termNodes[termStarts[t]] up to
+    // termNodes[termStarts[t + 1]], in pre-order.
+    private final int[] termStarts;
+    private final int[] termNodes;
+    // The terms in the order of their lower case strings.
+    private final int[] sortedTerms;
+    private final HashMap<Integer, TermList> grams = new HashMap<Integer, TermList>();
+
+    MonkeyTextIndex(MonkeyViewSnapshot snapshot) {
+        this.snapshot = snapshot;
+        int size = snapshot.size();
+        // Number the distinct strings shown by nodes, counting their nodes.
+        int[] termOf = new int[snapshot.getStringCount()];
+        Arrays.fill(termOf, -1);
+        int[] counts = new int[termOf.length + 1];
+        int termCount = 0;
+        for (int i = 0; i < size; i++) {
+            int text = snapshot.getTextStringIndex(i);
+            int description = snapshot.getContentDescriptionStringIndex(i);
+            for (int s : new int[] { text, description != text ? description : -1 }) {
+                if (s >= 0) {
+                    if (termOf[s] < 0) {
+                        termOf[s] = termCount++;
+                    }
+                    counts[termOf[s] + 1]++;
+                }
+            }
+        }
+        terms = new String[termCount];
+        lowerTerms = new String[termCount];
+        for (int s = 0; s < termOf.length; s++) {
+            if (termOf[s] >= 0) {
+                terms[termOf[s]] = snapshot.getDistinctString(s);
+                lowerTerms[termOf[s]] = terms[termOf[s]].toLowerCase(Locale.ROOT);
+            }
+        }
+
+        termStarts = Arrays.copyOf(counts, termCount + 1);
+        for (int t = 0; t < termCount; t++) {
+            termStarts[t + 1] += termStarts[t];
+        }
+        termNodes = new int[termStarts[termCount]];
+        int[] filled = Arrays.copyOf(termStarts, termCount);
+        for (int i = 0; i < size; i++) {
+            int text = snapshot.getTextStringIndex(i);
+            int description = snapshot.getContentDescriptionStringIndex(i);
+            if (text >= 0) {
+                termNodes[filled[termOf[text]]++] = i;
+            }
+            if (description >= 0 && description != text) {
+                termNodes[filled[termOf[description]]++] = i;
+            }
+        }
+
+        Integer[] sorted = new Integer[termCount];
+        for (int t = 0; t < termCount; t++) {
+            sorted[t] = t;
+        }
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return lowerTerms[a].compareTo(lowerTerms[b]);
+            }
+        });
+        sortedTerms = new int[termCount];
+        for (int t = 0; t < termCount; t++) {
+            sortedTerms[t] = sorted[t];
+        }
+
+        for (int t = 0; t < termCount; t++) {
+            for (int gram : grams(lowerTerms[t])) {
+                TermList list = grams.get(gram);
+                if (list == null) {
+                    list = new TermList();
+                    grams.put(gram, list);
+                }
+                list.add(t);
+            }
+        }
+    }
+
+    /**
+     * @return the mode called name, or -1 if there is none.
+     */
+    public static int mode(String name) {
+        return Arrays.asList(MODE_NAMES).indexOf(name);
+    }
+
+    /**
+     * @return the distinct pairs of adjacent characters of s.
+     */
+    private static int[] grams(String s) {
+        HashSet<Integer> grams = new HashSet<Integer>();
+        for (int i = 0; i + 1 < s.length(); i++) {
+            grams.add((s.charAt(i) << 16) | s.charAt(i + 1));
+        }
+        int[] result = new int[grams.size()];
+        int n = 0;
+        for (int gram : grams) {
+            result[n++] = gram;
+        }
+        return result;
+    }
+
+    /**
+     * @return the snapshot indexed.
+     */
+    public MonkeyViewSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Find the nodes matching a query.
+     *
+     * @param out receives the matches, the best first, nodes matching equally
+     *            well in pre-order. A node is only found once.
+     */
+    public void find(Query query, List<Match> out) {
+        List<Match> found = new ArrayList<Match>();
+        switch (query.mode) {
+            case EXACT:
+                for (int k = lowerBound(query.lowerText); k < sortedTerms.length
+                        && lowerTerms[sortedTerms[k]].equals(query.lowerText); k++) {
+                    if (terms[sortedTerms[k]].equals(query.text)) {
+                        addNodes(sortedTerms[k], 0, found);
+                    }
+                }
+                break;
+            case PREFIX:
+                for (int k = lowerBound(query.lowerText); k < sortedTerms.length
+                        && lowerTerms[sortedTerms[k]].startsWith(query.lowerText); k++) {
+                    int t = sortedTerms[k];
+                    addNodes(t, lowerTerms[t].length() - query.lowerText.length(), found);
+                }
+                break;
+            case CONTAINS:
+                for (int t : candidates(query, query.grams.length)) {
+                    String term = lowerTerms[t];
+                    if (term.equals(query.lowerText)) {
+                        addNodes(t, 0, found);
+                    } else if (term.startsWith(query.lowerText)) {
+                        addNodes(t, 1, found);
+                    } else if (term.contains(query.lowerText)) {
+                        addNodes(t, 2, found);
+                    }
+                }
+                break;
+            case REGEX:
+                for (int t = 0; t < terms.length; t++) {
+                    if (query.pattern.matcher(terms[t]).matches()) {
+                        addNodes(t, 0, found);
+                    } else if (query.pattern.matcher(terms[t]).find()) {
+                        addNodes(t, 1, found);
+                    }
+                }
+                break;
+            case FUZZY:
+                // Every edit breaks at most two of the pairs of the query.
+                for (int t : candidates(query, query.grams.length - 2 * query.maxDistance)) {
+                    int distance = distance(lowerTerms[t], query.lowerText, query.maxDistance);
+                    if (distance <= query.maxDistance) {
+                        addNodes(t, distance, found);
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("mode " + query.mode);
+        }
+        Collections.sort(found, new Comparator<Match>() {
+            @Override
+            public int compare(Match a, Match b) {
+                int c = RANKING.compare(a, b);
+                return c != 0 ? c : Integer.compare(a.node, b.node);
+            }
+        });
+        HashSet<Integer> seen = new HashSet<Integer>();
+        for (Match match : found) {
+            if (seen.add(match.node)) {
+                out.add(match);
+            }
+        }
+    }
+
+    private void addNodes(int term, int score, List<Match> out) {
+        for (int k = termStarts[term]; k < termStarts[term + 1]; k++) {
+            out.add(new Match(snapshot, termNodes[k], terms[term], score));
+        }
+    }
+
+    /**
+     * @return the position of the first term in sortedTerms not before s.
+     */
+    private int lowerBound(String s) {
+        int low = 0;
+        int high = sortedTerms.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lowerTerms[sortedTerms[middle]].compareTo(s) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param required how many of the pairs of the query a term must contain,
+     *                 all terms are candidates if it's 0 or less.
+     * @return the terms containing enough of the pairs of the query.
+     */
+    private int[] candidates(Query query, int required) {
+        if (required <= 0) {
+            int[] all = new int[terms.length];
+            for (int t = 0; t < all.length; t++) {
+                all[t] = t;
+            }
+            return all;
+        }
+        if (required == query.grams.length) {
+            // Every pair is needed, so the terms of the rarest one will do.
+            TermList rarest = null;
+            for (int gram : query.grams) {
+                TermList list = grams.get(gram);
+                if (list == null) {
+                    return new int[0];
+                }
+                if (rarest == null || list.size < rarest.size) {
+                    rarest = list;
+                }
+            }
+            return Arrays.copyOf(rarest.terms, rarest.size);
+        }
+        int[] counts = new int[terms.length];
+        int[] found = new int[16];
+        int n = 0;
+        for (int gram : query.grams) {
+            TermList list = grams.get(gram);
+            if (list == null) {
+                continue;
+            }
+            for (int k = 0; k < list.size; k++) {
+                if (++counts[list.terms[k]] == required) {
+                    if (n == found.length) {
+                        found = Arrays.copyOf(found, n * 2);
+                    }
+                    found[n++] = list.terms[k];
+                }
+            }
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * @return the edit distance between a and b, or max + 1 if it's more than
+     *         max.
+     */
+    static int distance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) {
+            return max + 1;
+        }
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[b.length()], max + 1);
+    }
+}
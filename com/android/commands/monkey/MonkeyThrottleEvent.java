@@ -31,6 +31,10 @@ public class MonkeyThrottleEvent extends MonkeyEvent {
         mThrottle = throttle;
     }  
 
+    public long getThrottle() {
+        return mThrottle;
+    }
+
     @Override
     public int injectEvent(IWindowManager iwm, IActivityManager iam, int verbose) {
 
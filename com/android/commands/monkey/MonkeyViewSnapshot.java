@@ -0,0 +1,1078 @@
+/*
+ * Copyright 2011, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.commands.monkey;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityInteractionClient;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+/**
+ * An immutable copy of a view hierarchy, so it can be queried without a binder
+ * call per node.
+ * <p>
+ * Nodes are numbered in pre-order: the root is 0, and the descendants of node
+ * i are the nodes i + 1 up to {@link #getSubtreeEnd(int)}. The children of a
+ * node are found by starting at i + 1 and jumping to the subtree end of each
+ * child in turn.
+ * <p>
+ * Snapshots of the hierarchies queried last are cached. Every accessibility
+ * event marks its source node as changed, and the next {@link #obtain} only
+ * fetches the changed subtrees again; everything else is taken over from the
+ * previous snapshot. Window state changes and events without a source drop the
+ * snapshots of their window altogether.
+ * <p>
+ * Every snapshot taken gets a new version number. The last few snapshots of
+ * each cached hierarchy are kept, so {@link #diff} can tell a client what
+ * changed since the version it saw last.
+ * <p>
+ * The properties of the nodes are kept in parallel primitive arrays indexed by
+ * node, rather than in an object per node, and the strings in a table per
+ * snapshot holding each distinct string once; a hierarchy repeats the same
+ * class and package names over and over. Snapshots can also be put together
+ * from plain values with a {@link Builder}, e.g. for synthetic trees.
+ */
+public class MonkeyViewSnapshot {
+    // How many hierarchies are kept cached.
+    private static final int CACHE_SIZE = 8;
+
+    // How many past snapshots of each cached hierarchy are kept for diffs.
+    private static final int HISTORY_SIZE = 16;
+
+    public static final int FLAG_CHECKABLE = 1;
+    public static final int FLAG_CHECKED = 1 << 1;
+    public static final int FLAG_CLICKABLE = 1 << 2;
+    public static final int FLAG_LONG_CLICKABLE = 1 << 3;
+    public static final int FLAG_EDITABLE = 1 << 4;
+    public static final int FLAG_ENABLED = 1 << 5;
+    public static final int FLAG_FOCUSABLE = 1 << 6;
+    public static final int FLAG_FOCUSED = 1 << 7;
+    public static final int FLAG_SCROLLABLE = 1 << 8;
+    public static final int FLAG_SELECTED = 1 << 9;
+    public static final int FLAG_VISIBLE_TO_USER = 1 << 10;
+    public static final int FLAG_ACCESSIBILITY_FOCUSED = 1 << 11;
+    public static final int FLAG_PASSWORD = 1 << 12;
+
+    // Events that don't change anything a snapshot holds.
+    private static final int IGNORED_EVENTS = AccessibilityEvent.TYPE_VIEW_HOVER_ENTER
+            | AccessibilityEvent.TYPE_VIEW_HOVER_EXIT | AccessibilityEvent.TYPE_TOUCH_EXPLORATION_GESTURE_START
+            | AccessibilityEvent.TYPE_TOUCH_EXPLORATION_GESTURE_END | AccessibilityEvent.TYPE_ANNOUNCEMENT
+            | AccessibilityEvent.TYPE_VIEW_TEXT_TRAVERSED_AT_MOVEMENT_GRANULARITY
+            | AccessibilityEvent.TYPE_GESTURE_DETECTION_START | AccessibilityEvent.TYPE_GESTURE_DETECTION_END
+            | AccessibilityEvent.TYPE_TOUCH_INTERACTION_START | AccessibilityEvent.TYPE_TOUCH_INTERACTION_END;
+
+    // The strings of a node, in the order they are kept in.
+    private static final int TEXT = 0;
+    private static final int CONTENT_DESCRIPTION = 1;
+    private static final int CLASS_NAME = 2;
+    private static final int PACKAGE_NAME = 3;
+    private static final int VIEW_ID_RESOURCE_NAME = 4;
+    private static final int STRINGS_PER_NODE = 5;
+
+    /**
+     * The differences between an older and a newer snapshot of a hierarchy,
+     * with nodes matched by their source node id.
+     */
+    public static class Diff {
+        // Indexes into the newer snapshot of the nodes that are new.
+        public final int[] added;
+        // Indexes into the older snapshot of the nodes that are gone.
+        public final int[] removed;
+        // Indexes into the newer snapshot of the nodes whose properties or
+        // position changed.
+        public final int[] changed;
+
+        Diff(int[] added, int[] removed, int[] changed) {
+            this.added = added;
+            this.removed = removed;
+            this.changed = changed;
+        }
+
+        public boolean isEmpty() {
+            return added.length == 0 && removed.length == 0 && changed.length == 0;
+        }
+    }
+
+    /**
+     * Which subtrees to leave out of a snapshot. Their nodes are not fetched
+     * at all, except for the root of the subtree, which is needed to tell.
+     * The root of the snapshot is always kept.
+     */
+    public static class Pruning {
+        // How deep below the root nodes are kept, or -1 for no limit.
+        final int maxDepth;
+        final boolean visibleOnly;
+        // Nodes narrower or lower than this are left out.
+        final int minSize;
+
+        public Pruning(int maxDepth, boolean visibleOnly, int minSize) {
+            this.maxDepth = maxDepth;
+            this.visibleOnly = visibleOnly;
+            this.minSize = minSize;
+        }
+
+        /**
+         * @return true if the children of a node at this depth are kept.
+         */
+        public boolean expands(int depth) {
+            return maxDepth < 0 || depth < maxDepth;
+        }
+
+        /**
+         * @return true if node i of a snapshot and its subtree are left out,
+         *         apart from the depth limit.
+         */
+        public boolean drops(MonkeyViewSnapshot snapshot, int i) {
+            int b = i * 4;
+            return i > 0 && drops(snapshot.flags[i], snapshot.bounds[b + 2] - snapshot.bounds[b],
+                    snapshot.bounds[b + 3] - snapshot.bounds[b + 1]);
+        }
+
+        boolean drops(int flags, int width, int height) {
+            return (visibleOnly && (flags & FLAG_VISIBLE_TO_USER) == 0) || width < minSize || height < minSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Pruning)) {
+                return false;
+            }
+            Pruning other = (Pruning) o;
+            return maxDepth == other.maxDepth && visibleOnly == other.visibleOnly && minSize == other.minSize;
+        }
+
+        @Override
+        public int hashCode() {
+            return (maxDepth * 31 + minSize) * 2 + (visibleOnly ? 1 : 0);
+        }
+
+        static boolean equals(Pruning a, Pruning b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private static final AtomicLong sVersions = new AtomicLong();
+
+    private final long[] sourceNodeIds;
+    private final int[] windowIds;
+    // left, top, right, bottom of each node.
+    private final int[] bounds;
+    private final int[] inputTypes;
+    private final int[] maxTextLengths;
+    private final int[] flags;
+    // STRINGS_PER_NODE indexes into stringTable per node, -1 for null.
+    private final int[] strings;
+    private final String[] stringTable;
+    private final int[] parents;
+    private final int[] depths;
+    private final int[] indexesInParent;
+    private final int[] subtreeEnds;
+    // The ids of the children pruning left out, per node, or null.
+    private final long[][] dropped;
+    private final int size;
+    private final long version;
+    private HashMap<Long, Integer> indexes;
+    // Maps the ids in dropped to the index of their parent.
+    private HashMap<Long, Integer> droppedParents;
+    private MonkeySpatialIndex spatialIndex;
+    private MonkeyTextIndex textIndex;
+
+    private MonkeyViewSnapshot(Builder builder, long version) {
+        this.version = version;
+        this.sourceNodeIds = builder.sourceNodeIds;
+        this.windowIds = builder.windowIds;
+        this.bounds = builder.bounds;
+        this.inputTypes = builder.inputTypes;
+        this.maxTextLengths = builder.maxTextLengths;
+        this.flags = builder.flags;
+        this.strings = builder.strings;
+        this.stringTable = builder.stringTable;
+        this.parents = builder.parents;
+        this.depths = builder.depths;
+        this.indexesInParent = builder.indexesInParent;
+        this.subtreeEnds = builder.subtreeEnds;
+        this.dropped = builder.dropped;
+        this.size = builder.size;
+    }
+
+    /**
+     * @return the number of nodes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the version of the hierarchy this is a snapshot of. Subtrees
+     *         have the version of the snapshot they were taken from.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the index of the parent of node i, -1 for the root.
+     */
+    public int getParent(int i) {
+        return parents[i];
+    }
+
+    /**
+     * @return the depth of node i below the root, 0 for the root.
+     */
+    public int getDepth(int i) {
+        return depths[i];
+    }
+
+    /**
+     * @return the position of node i among the children of its parent, as
+     *         passed to AccessibilityNodeInfo.getChild().
+     */
+    public int getIndexInParent(int i) {
+        return indexesInParent[i];
+    }
+
+    /**
+     * @return the index following the last descendant of node i.
+     */
+    public int getSubtreeEnd(int i) {
+        return subtreeEnds[i];
+    }
+
+    /**
+     * @return the index of the node with the given source node id, or -1.
+     */
+    public synchronized int indexOf(long sourceNodeId) {
+        if (indexes == null) {
+            indexes = new HashMap<Long, Integer>(size * 2);
+            for (int i = 0; i < size; i++) {
+                indexes.put(sourceNodeIds[i], i);
+            }
+        }
+        Integer index = indexes.get(sourceNodeId);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * @return the index telling which nodes are at a point, built the first
+     *         time it is asked for.
+     */
+    public synchronized MonkeySpatialIndex getSpatialIndex() {
+        if (spatialIndex == null) {
+            spatialIndex = new MonkeySpatialIndex(this);
+        }
+        return spatialIndex;
+    }
+
+    public long getSourceNodeId(int i) {
+        return sourceNodeIds[i];
+    }
+
+    public int getWindowId(int i) {
+        return windowIds[i];
+    }
+
+    public int getViewId(int i) {
+        // The low half of the source node id, see
+        // AccessibilityNodeInfo.getAccessibilityViewId().
+        return (int) sourceNodeIds[i];
+    }
+
+    private String getString(int i, int which) {
+        int index = strings[i * STRINGS_PER_NODE + which];
+        return index >= 0 ? stringTable[index] : null;
+    }
+
+    public String getText(int i) {
+        return getString(i, TEXT);
+    }
+
+    public String getContentDescription(int i) {
+        return getString(i, CONTENT_DESCRIPTION);
+    }
+
+    public String getClassName(int i) {
+        return getString(i, CLASS_NAME);
+    }
+
+    public String getPackageName(int i) {
+        return getString(i, PACKAGE_NAME);
+    }
+
+    public String getViewIdResourceName(int i) {
+        return getString(i, VIEW_ID_RESOURCE_NAME);
+    }
+
+    public int getLeft(int i) {
+        return bounds[i * 4];
+    }
+
+    public int getTop(int i) {
+        return bounds[i * 4 + 1];
+    }
+
+    public int getRight(int i) {
+        return bounds[i * 4 + 2];
+    }
+
+    public int getBottom(int i) {
+        return bounds[i * 4 + 3];
+    }
+
+    public void getBoundsInScreen(int i, Rect outBounds) {
+        int b = i * 4;
+        outBounds.left = bounds[b];
+        outBounds.top = bounds[b + 1];
+        outBounds.right = bounds[b + 2];
+        outBounds.bottom = bounds[b + 3];
+    }
+
+    /**
+     * @return the bounds of node i formatted like Rect.toShortString().
+     */
+    public String getBoundsString(int i) {
+        int b = i * 4;
+        return "[" + bounds[b] + "," + bounds[b + 1] + "][" + bounds[b + 2] + "," + bounds[b + 3] + "]";
+    }
+
+    public int getInputType(int i) {
+        return inputTypes[i];
+    }
+
+    public int getMaxTextLength(int i) {
+        return maxTextLengths[i];
+    }
+
+    /**
+     * @param flag one of the FLAG_* constants.
+     */
+    public boolean is(int i, int flag) {
+        return (flags[i] & flag) != 0;
+    }
+
+    /**
+     * @return the number of distinct strings the nodes hold.
+     */
+    public int getStringCount() {
+        return stringTable.length;
+    }
+
+    /**
+     * @param s from 0 up to getStringCount().
+     * @return string s of the distinct strings.
+     */
+    public String getDistinctString(int s) {
+        return stringTable[s];
+    }
+
+    /**
+     * @return which of the distinct strings the text of node i is, -1 for
+     *         none.
+     */
+    public int getTextStringIndex(int i) {
+        return strings[i * STRINGS_PER_NODE + TEXT];
+    }
+
+    /**
+     * @return which of the distinct strings the content description of node i
+     *         is, -1 for none.
+     */
+    public int getContentDescriptionStringIndex(int i) {
+        return strings[i * STRINGS_PER_NODE + CONTENT_DESCRIPTION];
+    }
+
+    /**
+     * @return the index finding nodes by their text, built the first time it
+     *         is asked for.
+     */
+    public synchronized MonkeyTextIndex getTextIndex() {
+        if (textIndex == null) {
+            textIndex = new MonkeyTextIndex(this);
+        }
+        return textIndex;
+    }
+
+    /**
+     * @return true if node i of this snapshot and node j of another one have
+     *         the same properties, not looking at their place in the tree.
+     */
+    private boolean sameProperties(int i, MonkeyViewSnapshot other, int j) {
+        if (sourceNodeIds[i] != other.sourceNodeIds[j] || windowIds[i] != other.windowIds[j]
+                || inputTypes[i] != other.inputTypes[j] || maxTextLengths[i] != other.maxTextLengths[j]
+                || flags[i] != other.flags[j]) {
+            return false;
+        }
+        for (int b = 0; b < 4; b++) {
+            if (bounds[i * 4 + b] != other.bounds[j * 4 + b]) {
+                return false;
+            }
+        }
+        for (int k = 0; k < STRINGS_PER_NODE; k++) {
+            String a = getString(i, k);
+            String b = other.getString(j, k);
+            if (a == null ? b != null : !a.equals(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a snapshot of the subtree of node i.
+     */
+    public MonkeyViewSnapshot subtree(int i) {
+        if (i == 0) {
+            return this;
+        }
+        Builder builder = new Builder(subtreeEnds[i] - i);
+        builder.copySubtree(this, i, -1, 0, 0);
+        return builder.build(version);
+    }
+
+    /**
+     * Compare this snapshot with an older one of the same hierarchy. A node
+     * counts as changed if any of its properties, its parent or its position
+     * among its siblings differ.
+     */
+    public Diff diff(MonkeyViewSnapshot older) {
+        int[] added = new int[size];
+        int[] changed = new int[size];
+        int addedCount = 0;
+        int changedCount = 0;
+        int matched = 0;
+        for (int i = 0; i < size; i++) {
+            int j = older.indexOf(sourceNodeIds[i]);
+            if (j < 0) {
+                added[addedCount++] = i;
+                continue;
+            }
+            matched++;
+            int parent = parents[i];
+            int olderParent = older.parents[j];
+            boolean moved = (parent < 0) != (olderParent < 0)
+                    || (parent >= 0 && sourceNodeIds[parent] != older.sourceNodeIds[olderParent])
+                    || indexesInParent[i] != older.indexesInParent[j];
+            if (moved || !sameProperties(i, older, j)) {
+                changed[changedCount++] = i;
+            }
+        }
+        int[] removed = new int[older.size - matched];
+        if (removed.length > 0) {
+            int removedCount = 0;
+            for (int j = 0; j < older.size; j++) {
+                if (indexOf(older.sourceNodeIds[j]) < 0) {
+                    removed[removedCount++] = j;
+                }
+            }
+        }
+        return new Diff(Arrays.copyOf(added, addedCount), removed, Arrays.copyOf(changed, changedCount));
+    }
+
+    /**
+     * Take a snapshot of the hierarchy under root without using the cache.
+     */
+    public static MonkeyViewSnapshot capture(AccessibilityNodeInfo root) {
+        return capture(root, null);
+    }
+
+    /**
+     * Take a snapshot of the hierarchy under root without using the cache,
+     * leaving out the subtrees pruning drops.
+     *
+     * @param pruning what to leave out, or null to keep everything.
+     */
+    public static MonkeyViewSnapshot capture(AccessibilityNodeInfo root, Pruning pruning) {
+        Builder builder = new Builder(64, pruning);
+        try {
+            builder.capture(root, -1, 0, 0);
+        } finally {
+            builder.release();
+        }
+        return builder.build(sVersions.incrementAndGet());
+    }
+
+    /**
+     * Find a cached snapshot of the hierarchy under root by its version.
+     *
+     * @param root    the root of the hierarchy.
+     * @param version the version asked for.
+     * @return the snapshot, or null if that version is no longer kept.
+     */
+    public static MonkeyViewSnapshot findVersion(AccessibilityNodeInfo root, long version) {
+        long rootId = root.getSourceNodeId();
+        int windowId = root.getWindowId();
+        for (Entry e : sEntries) {
+            if (e.windowId != windowId) {
+                continue;
+            }
+            MonkeyViewSnapshot snapshot = e.findVersion(version);
+            if (snapshot != null) {
+                int index = snapshot.indexOf(rootId);
+                return index >= 0 ? snapshot.subtree(index) : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get a snapshot of the hierarchy under root, fetching only what changed
+     * since the last time it or a hierarchy containing it was asked for.
+     *
+     * @param root a node that was just fetched.
+     * @return the snapshot, or null if the node no longer exists.
+     */
+    public static MonkeyViewSnapshot obtain(AccessibilityNodeInfo root) {
+        return obtain(root, null);
+    }
+
+    /**
+     * Get a snapshot of the hierarchy under root that may leave out what
+     * pruning drops. A cached complete snapshot is used if there is one,
+     * otherwise a pruned one is taken and cached separately.
+     *
+     * @param pruning what may be left out, or null to keep everything.
+     */
+    public static MonkeyViewSnapshot obtain(AccessibilityNodeInfo root, Pruning pruning) {
+        long rootId = root.getSourceNodeId();
+        int windowId = root.getWindowId();
+        Entry entry = null;
+        Entry container = null;
+        synchronized (sEntries) {
+            for (Entry e : sEntries) {
+                if (e.windowId != windowId) {
+                    continue;
+                }
+                if (e.rootId == rootId && Pruning.equals(e.pruning, pruning)) {
+                    entry = e;
+                    break;
+                }
+                // Only complete snapshots hold everything of their subtrees.
+                MonkeyViewSnapshot snapshot = e.snapshot;
+                if (container == null && e.pruning == null && snapshot != null && snapshot.indexOf(rootId) >= 0) {
+                    container = e;
+                }
+            }
+            if (entry == null && container == null) {
+                entry = new Entry(windowId, rootId, pruning);
+                if (sEntries.size() == CACHE_SIZE) {
+                    sEntries.remove(leastRecentlyUsed());
+                }
+                sEntries.add(entry);
+            }
+            (entry != null ? entry : container).lastUsed = ++sUseCount;
+        }
+        if (entry != null) {
+            return entry.get(root);
+        }
+        MonkeyViewSnapshot snapshot = container.get(null);
+        int index = snapshot != null ? snapshot.indexOf(rootId) : -1;
+        if (index < 0) {
+            // It went away since the last snapshot, or was moved elsewhere.
+            return capture(root);
+        }
+        return snapshot.subtree(index);
+    }
+
+    private static Entry leastRecentlyUsed() {
+        Entry lru = null;
+        for (Entry e : sEntries) {
+            if (lru == null || e.lastUsed < lru.lastUsed) {
+                lru = e;
+            }
+        }
+        return lru;
+    }
+
+    /**
+     * Called from the OnAccessibilityEventListener for every event.
+     */
+    public static void onAccessibilityEvent(AccessibilityEvent event) {
+        if (sEntries.isEmpty()) {
+            return;
+        }
+        int type = event.getEventType();
+        if ((type & IGNORED_EVENTS) != 0) {
+            return;
+        }
+        int windowId = event.getWindowId();
+        long sourceNodeId = event.getSourceNodeId();
+        boolean allWindows = type == AccessibilityEvent.TYPE_WINDOWS_CHANGED || windowId < 0;
+        boolean wholeWindow = type == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+                || sourceNodeId == AccessibilityNodeInfo.UNDEFINED_NODE_ID;
+        for (Entry e : sEntries) {
+            if (allWindows || e.windowId == windowId) {
+                if (allWindows || wholeWindow) {
+                    e.invalidate();
+                } else {
+                    e.invalidate(sourceNodeId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop all cached snapshots.
+     */
+    public static void clearCache() {
+        synchronized (sEntries) {
+            sEntries.clear();
+        }
+    }
+
+    private static final CopyOnWriteArrayList<Entry> sEntries = new CopyOnWriteArrayList<Entry>();
+    // Guarded by sEntries.
+    private static long sUseCount;
+
+    /**
+     * The cached snapshot of one hierarchy and the nodes that changed since it
+     * was taken. Invalidated from the thread delivering accessibility events,
+     * which must not wait for a snapshot being taken.
+     */
+    private static class Entry {
+        final int windowId;
+        final long rootId;
+        final Pruning pruning;
+        volatile MonkeyViewSnapshot snapshot;
+        long lastUsed;
+
+        // The last snapshots taken, oldest first. Guarded by history.
+        private final ArrayDeque<MonkeyViewSnapshot> history = new ArrayDeque<MonkeyViewSnapshot>();
+
+        // Guarded by changedLock.
+        private final Object changedLock = new Object();
+        private Set<Long> changed = new HashSet<Long>();
+        private boolean invalid;
+
+        Entry(int windowId, long rootId, Pruning pruning) {
+            this.windowId = windowId;
+            this.rootId = rootId;
+            this.pruning = pruning;
+        }
+
+        void invalidate(long sourceNodeId) {
+            synchronized (changedLock) {
+                if (!invalid) {
+                    changed.add(sourceNodeId);
+                }
+            }
+        }
+
+        void invalidate() {
+            synchronized (changedLock) {
+                invalid = true;
+                changed.clear();
+            }
+        }
+
+        /**
+         * Bring the snapshot up to date.
+         *
+         * @param root the root node if the caller just fetched it, or null.
+         * @return the snapshot, or null if the root no longer exists.
+         */
+        synchronized MonkeyViewSnapshot get(AccessibilityNodeInfo root) {
+            Set<Long> changedNodes;
+            boolean wasInvalid;
+            synchronized (changedLock) {
+                changedNodes = changed;
+                wasInvalid = invalid;
+                changed = new HashSet<Long>();
+                invalid = false;
+            }
+            MonkeyViewSnapshot current = snapshot;
+            if (current == null || wasInvalid || changedNodes.contains(rootId)) {
+                if (root == null) {
+                    root = fetch(windowId, rootId);
+                    if (root == null) {
+                        snapshot = null;
+                        return null;
+                    }
+                }
+                current = capture(root, pruning);
+            } else if (!changedNodes.isEmpty()) {
+                current = current.refresh(changedNodes, pruning);
+            }
+            if (current != snapshot) {
+                synchronized (history) {
+                    if (history.size() == HISTORY_SIZE) {
+                        history.poll();
+                    }
+                    history.offer(current);
+                }
+            }
+            snapshot = current;
+            return current;
+        }
+
+        MonkeyViewSnapshot findVersion(long version) {
+            synchronized (history) {
+                for (MonkeyViewSnapshot snapshot : history) {
+                    if (snapshot.version == version) {
+                        return snapshot;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return a copy of this snapshot with the given nodes and their subtrees
+     *         fetched again.
+     */
+    private MonkeyViewSnapshot refresh(Set<Long> changedNodes, Pruning pruning) {
+        // 0: unchanged subtree, 1: changed descendants, 2: changed.
+        byte[] marks = new byte[size];
+        boolean marked = false;
+        for (Long sourceNodeId : changedNodes) {
+            int i = indexOf(sourceNodeId);
+            if (i < 0) {
+                // A node left out may have become visible or grown, so its
+                // parent has to decide again.
+                i = droppedParentOf(sourceNodeId);
+            }
+            if (i < 0) {
+                // Not part of this hierarchy, or its parent reported it.
+                continue;
+            }
+            marked = true;
+            marks[i] = 2;
+            for (int p = parents[i]; p >= 0 && marks[p] == 0; p = parents[p]) {
+                marks[p] = 1;
+            }
+        }
+        if (!marked) {
+            return this;
+        }
+        Builder builder = new Builder(size, pruning);
+        try {
+            builder.refresh(this, marks, 0, -1, 0, 0);
+        } finally {
+            builder.release();
+        }
+        return builder.build(sVersions.incrementAndGet());
+    }
+
+    /**
+     * @return the index of the node whose child with the given id was left
+     *         out, or -1.
+     */
+    private synchronized int droppedParentOf(long sourceNodeId) {
+        if (droppedParents == null) {
+            droppedParents = new HashMap<Long, Integer>();
+            for (int i = 0; i < size; i++) {
+                if (dropped[i] != null) {
+                    for (long id : dropped[i]) {
+                        droppedParents.put(id, i);
+                    }
+                }
+            }
+        }
+        Integer index = droppedParents.get(sourceNodeId);
+        return index != null ? index : -1;
+    }
+
+    private static AccessibilityNodeInfo fetch(int windowId, long sourceNodeId) {
+        int connectionId = MonkeySourceNetworkViews.sUiTestAutomationBridge.getConnectionId();
+        return AccessibilityInteractionClient.getInstance().findAccessibilityNodeInfoByAccessibilityId(connectionId,
+                windowId, sourceNodeId, false, 0, null);
+    }
+
+    /**
+     * Collects the nodes of a snapshot in pre-order.
+     * <p>
+     * Besides taking snapshots of live nodes, it puts snapshots together from
+     * plain values: {@link #add} each node after its parent and its earlier
+     * siblings, set its properties, and {@link #build()}.
+     */
+    public static class Builder {
+        long[] sourceNodeIds;
+        int[] windowIds;
+        int[] bounds;
+        int[] inputTypes;
+        int[] maxTextLengths;
+        int[] flags;
+        int[] strings;
+        String[] stringTable;
+        int[] parents;
+        int[] depths;
+        int[] indexesInParent;
+        int[] subtreeEnds;
+        long[][] dropped;
+        int size;
+        // Maps the strings in stringTable to their index.
+        private final HashMap<String, Integer> stringIndexes = new HashMap<String, Integer>();
+        private int stringCount;
+        // Only capture() needs it, created there so building synthetic trees
+        // doesn't touch the android classes.
+        private Rect rect;
+        private final Pruning pruning;
+        // Created by the first node fetched.
+        private MonkeyNodeFetcher fetcher;
+
+        public Builder(int capacity) {
+            this(capacity, null);
+        }
+
+        Builder(int capacity, Pruning pruning) {
+            this.pruning = pruning;
+            capacity = Math.max(capacity, 16);
+            sourceNodeIds = new long[capacity];
+            windowIds = new int[capacity];
+            bounds = new int[capacity * 4];
+            inputTypes = new int[capacity];
+            maxTextLengths = new int[capacity];
+            flags = new int[capacity];
+            strings = new int[capacity * STRINGS_PER_NODE];
+            stringTable = new String[capacity];
+            parents = new int[capacity];
+            depths = new int[capacity];
+            indexesInParent = new int[capacity];
+            subtreeEnds = new int[capacity];
+            dropped = new long[capacity][];
+        }
+
+        /**
+         * Add a node without any strings, after its parent and the children
+         * of its parent that come before it.
+         *
+         * @param parent        the index of the parent, -1 for the root.
+         * @param indexInParent the position among the children of the parent.
+         * @param flags         the FLAG_* of the node.
+         * @return the index of the node.
+         */
+        public int add(int parent, int indexInParent, long sourceNodeId, int windowId, int flags, int left,
+                int top, int right, int bottom) {
+            if (size == parents.length) {
+                int capacity = size * 2;
+                sourceNodeIds = Arrays.copyOf(sourceNodeIds, capacity);
+                windowIds = Arrays.copyOf(windowIds, capacity);
+                bounds = Arrays.copyOf(bounds, capacity * 4);
+                inputTypes = Arrays.copyOf(inputTypes, capacity);
+                maxTextLengths = Arrays.copyOf(maxTextLengths, capacity);
+                this.flags = Arrays.copyOf(this.flags, capacity);
+                strings = Arrays.copyOf(strings, capacity * STRINGS_PER_NODE);
+                parents = Arrays.copyOf(parents, capacity);
+                depths = Arrays.copyOf(depths, capacity);
+                indexesInParent = Arrays.copyOf(indexesInParent, capacity);
+                subtreeEnds = Arrays.copyOf(subtreeEnds, capacity);
+                dropped = Arrays.copyOf(dropped, capacity);
+            }
+            int n = size++;
+            sourceNodeIds[n] = sourceNodeId;
+            windowIds[n] = windowId;
+            bounds[n * 4] = left;
+            bounds[n * 4 + 1] = top;
+            bounds[n * 4 + 2] = right;
+            bounds[n * 4 + 3] = bottom;
+            inputTypes[n] = 0;
+            maxTextLengths[n] = -1;
+            this.flags[n] = flags;
+            Arrays.fill(strings, n * STRINGS_PER_NODE, (n + 1) * STRINGS_PER_NODE, -1);
+            parents[n] = parent;
+            depths[n] = parent >= 0 ? depths[parent] + 1 : 0;
+            indexesInParent[n] = indexInParent;
+            subtreeEnds[n] = n + 1;
+            dropped[n] = null;
+            return n;
+        }
+
+        public void setStrings(int n, String text, String contentDescription, String className,
+                String packageName, String viewIdResourceName) {
+            int k = n * STRINGS_PER_NODE;
+            strings[k + TEXT] = intern(text);
+            strings[k + CONTENT_DESCRIPTION] = intern(contentDescription);
+            strings[k + CLASS_NAME] = intern(className);
+            strings[k + PACKAGE_NAME] = intern(packageName);
+            strings[k + VIEW_ID_RESOURCE_NAME] = intern(viewIdResourceName);
+        }
+
+        public void setInputType(int n, int inputType, int maxTextLength) {
+            inputTypes[n] = inputType;
+            maxTextLengths[n] = maxTextLength;
+        }
+
+        /**
+         * @return the index of s in the string table, -1 for null.
+         */
+        private int intern(String s) {
+            if (s == null) {
+                return -1;
+            }
+            Integer index = stringIndexes.get(s);
+            if (index != null) {
+                return index;
+            }
+            if (stringCount == stringTable.length) {
+                stringTable = Arrays.copyOf(stringTable, stringCount * 2);
+            }
+            stringTable[stringCount] = s;
+            stringIndexes.put(s, stringCount);
+            return stringCount++;
+        }
+
+        private static String toString(CharSequence s) {
+            return s != null ? s.toString() : null;
+        }
+
+        /**
+         * Add a copy of node j of another snapshot.
+         */
+        private int add(MonkeyViewSnapshot from, int j, int parent, int depth, int indexInParent) {
+            int b = j * 4;
+            int n = add(parent, indexInParent, from.sourceNodeIds[j], from.windowIds[j], from.flags[j],
+                    from.bounds[b], from.bounds[b + 1], from.bounds[b + 2], from.bounds[b + 3]);
+            // The depth of a subtree's root differs from its parent's plus one.
+            depths[n] = depth;
+            inputTypes[n] = from.inputTypes[j];
+            maxTextLengths[n] = from.maxTextLengths[j];
+            for (int k = 0; k < STRINGS_PER_NODE; k++) {
+                strings[n * STRINGS_PER_NODE + k] = intern(from.getString(j, k));
+            }
+            dropped[n] = from.dropped[j];
+            return n;
+        }
+
+        private MonkeyNodeFetcher fetcher() {
+            if (fetcher == null) {
+                fetcher = new MonkeyNodeFetcher();
+            }
+            return fetcher;
+        }
+
+        /**
+         * Recycle the nodes fetched but not used.
+         */
+        void release() {
+            if (fetcher != null) {
+                fetcher.release();
+            }
+        }
+
+        /**
+         * Fetch the subtree of a live node, in batches of nodes.
+         */
+        void capture(AccessibilityNodeInfo info, int parent, int depth, int indexInParent) {
+            if (rect == null) {
+                rect = new Rect();
+            }
+            info.getBoundsInScreen(rect);
+            int nodeFlags = (info.isCheckable() ? FLAG_CHECKABLE : 0)
+                    | (info.isChecked() ? FLAG_CHECKED : 0)
+                    | (info.isClickable() ? FLAG_CLICKABLE : 0)
+                    | (info.isLongClickable() ? FLAG_LONG_CLICKABLE : 0)
+                    | (info.isEditable() ? FLAG_EDITABLE : 0)
+                    | (info.isEnabled() ? FLAG_ENABLED : 0)
+                    | (info.isFocusable() ? FLAG_FOCUSABLE : 0)
+                    | (info.isFocused() ? FLAG_FOCUSED : 0)
+                    | (info.isScrollable() ? FLAG_SCROLLABLE : 0)
+                    | (info.isSelected() ? FLAG_SELECTED : 0)
+                    | (info.isVisibleToUser() ? FLAG_VISIBLE_TO_USER : 0)
+                    | (info.isAccessibilityFocused() ? FLAG_ACCESSIBILITY_FOCUSED : 0)
+                    | (info.isPassword() ? FLAG_PASSWORD : 0);
+            if (pruning != null && depth > 0 && pruning.drops(nodeFlags, rect.right - rect.left,
+                    rect.bottom - rect.top)) {
+                long[] ids = dropped[parent];
+                ids = ids == null ? new long[1] : Arrays.copyOf(ids, ids.length + 1);
+                ids[ids.length - 1] = info.getSourceNodeId();
+                dropped[parent] = ids;
+                return;
+            }
+            int i = add(parent, indexInParent, info.getSourceNodeId(), info.getWindowId(), nodeFlags, rect.left,
+                    rect.top, rect.right, rect.bottom);
+            depths[i] = depth;
+            setStrings(i, toString(info.getText()), toString(info.getContentDescription()),
+                    toString(info.getClassName()), toString(info.getPackageName()), info.getViewIdResourceName());
+            setInputType(i, info.getInputType(), info.getMaxTextLength());
+            int childCount = pruning == null || pruning.expands(depth) ? info.getChildCount() : 0;
+            for (int c = 0; c < childCount; c++) {
+                AccessibilityNodeInfo child = fetcher().getChild(info, c);
+                if (child != null) {
+                    capture(child, i, depth + 1, c);
+                    child.recycle();
+                }
+            }
+            subtreeEnds[i] = size;
+        }
+
+        /**
+         * Take over the subtree of node i of another snapshot as it is.
+         */
+        void copySubtree(MonkeyViewSnapshot from, int i, int parent, int depth, int indexInParent) {
+            int end = from.subtreeEnds[i];
+            int offset = size - i;
+            int depthOffset = depth - from.depths[i];
+            add(from, i, parent, depth, indexInParent);
+            for (int j = i + 1; j < end; j++) {
+                add(from, j, from.parents[j] + offset, from.depths[j] + depthOffset, from.indexesInParent[j]);
+            }
+            for (int j = i; j < end; j++) {
+                subtreeEnds[j + offset] = from.subtreeEnds[j] + offset;
+            }
+        }
+
+        /**
+         * Copy node i of another snapshot, fetching the subtrees marked as
+         * changed again.
+         */
+        void refresh(MonkeyViewSnapshot from, byte[] marks, int i, int parent, int depth, int indexInParent) {
+            if (marks[i] == 0) {
+                copySubtree(from, i, parent, depth, indexInParent);
+            } else if (marks[i] == 2) {
+                AccessibilityNodeInfo info = fetcher().fetch(from.windowIds[i], from.sourceNodeIds[i]);
+                if (info != null) {
+                    capture(info, parent, depth, indexInParent);
+                    info.recycle();
+                }
+            } else {
+                int n = add(from, i, parent, depth, indexInParent);
+                int end = from.subtreeEnds[i];
+                for (int c = i + 1; c < end; c = from.subtreeEnds[c]) {
+                    refresh(from, marks, c, n, depth + 1, from.indexesInParent[c]);
+                }
+                subtreeEnds[n] = size;
+            }
+        }
+
+        /**
+         * @return the snapshot of the nodes added, with a new version.
+         */
+        public MonkeyViewSnapshot build() {
+            return build(sVersions.incrementAndGet());
+        }
+
+        MonkeyViewSnapshot build(long version) {
+            // Nodes added on their own only know they end after themselves.
+            for (int i = size - 1; i > 0; i--) {
+                int parent = parents[i];
+                if (parent >= 0 && subtreeEnds[parent] < subtreeEnds[i]) {
+                    subtreeEnds[parent] = subtreeEnds[i];
+                }
+            }
+            stringTable = Arrays.copyOf(stringTable, stringCount);
+            return new MonkeyViewSnapshot(this, version);
+        }
+    }
+}
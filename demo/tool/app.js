@@ -33,11 +33,36 @@ let query = (command) => new Promise(async (resolve) => {
 let getRectInLine = (line) => line.match(/bounds=\[(\d+),(\d+)\]\[(\d+),(\d+)\]/).slice(1).map(o => parseInt(o))
 let getRect = (name, tree) => getRectInLine(tree.split('\n').filter(o => o.includes(name))[0])
 let getCenter = (rect) => [rect[0] + rect[2], rect[1] + rect[3]].map(o => parseInt(o / 2))
-let waitFor = (string) => new Promise(async (resolve) => { let matchLines = []; while (matchLines.length == 0) { let tree = await query('queryview gettree text'); matchLines = tree.split('\n').filter(o => o.includes(string)); await sleep(50) } resolve() })
+// An XPath literal for the string. Double quotes are escaped, or the request
+// line splitter would take them for its own quoting.
+let xpathString = (string) => {
+    if (!string.includes("'")) return `'${string.replace(/"/g, '\\"')}'`
+    if (!string.includes('"')) return `\\"${string}\\"`
+    throw new Error(`Can't look for text with both kinds of quotes: ${string}`)
+}
+// Nodes whose text, content description or resource id contains the string,
+// the fields the tree lines used to be searched in.
+let textSelector = (string) => ['text', 'content-desc', 'resource-id'].map(o => `contains(@${o}, ${xpathString(string)})`).join(' or ')
+// Resolves with the matches, in the find format, once a node shows up. Only a
+// timeout is retried; any other error, e.g. a selector that doesn't compile,
+// is passed on.
+let waitFor = (string) => new Promise(async (resolve, reject) => {
+    try {
+        while (true) {
+            let result = await query(`waitfor 60000 //*[${textSelector(string)}]`)
+            if (result == 'ERROR:Timed out') continue
+            if (result.startsWith('ERROR')) return reject(new Error(`waitfor ${string}: ${result}`))
+            return resolve(result)
+        }
+    } catch (error) {
+        reject(error)
+    }
+})
 let waitForColor = (color, x, y) => new Promise(async (resolve) => { let screenColor = ''; while (screenColor != color) { screenColor = await query(`takescreenshot getcolor ${x} ${y}`); await sleep(50) } resolve() })
 let clickCenter = (center) => run(`tap ${center.join(' ')}`)
 let clickRect = (rect) => clickCenter(getCenter(rect))
-let clickText = (text) => new Promise(async (resolve) => { await waitFor(text); let tree = await query('queryview gettree text'); clickRect(getRect(text, tree)); await wait(); resolve() })
+let getRectInMatch = (match) => match.match(/\[(\d+),(\d+)\]\[(\d+),(\d+)\]/).slice(1).map(o => parseInt(o))
+let clickText = (text) => new Promise(async (resolve, reject) => { try { clickRect(getRectInMatch(await waitFor(text))); await wait(); resolve() } catch (error) { reject(error) } })
 let findEditText = () => new Promise(async (resolve) => { let tree = await query(`queryview gettree text`); let rects = tree.split('\n').filter(o => o.includes('class=android.widget.EditText')).map(o => getRectInLine(o)); resolve(rects) })
 
 var server = http.createServer(async (request, response) => {
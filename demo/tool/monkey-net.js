@@ -198,6 +198,15 @@ let waitChange = () => async () => {
     return
 }
 
+/**
+ * wait until the screen settled, instead of sleeping for the worst case
+ *
+ * @param {number} quiet millisecond without screen changes
+ * @param {number} timeout longest wait millisecond
+ * @returns {Promise<boolean>} false on timeout
+ */
+let waitIdle = async (quiet = 300, timeout = 10000) => !(await query(`waitidle ${quiet} ${timeout}`)).startsWith('ERROR')
+
 /**
  * get json tree only visible
  *
@@ -297,6 +306,7 @@ module.exports.getCenter = getCenter
 module.exports.clickCenter = clickCenter
 module.exports.clickRect = clickRect
 module.exports.waitChange = waitChange
+module.exports.waitIdle = waitIdle
 module.exports.getVisibleTree = getVisibleTree
 module.exports.waitTreeFor = waitTreeFor
 module.exports.findInTree = findInTree